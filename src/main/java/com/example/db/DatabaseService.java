@@ -1,5 +1,7 @@
 package com.example.db;
 
+import com.example.metrics.Metrics;
+import com.example.metrics.StageMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.sql.*;
@@ -17,6 +19,8 @@ public class DatabaseService {
     private final String dbUrl;
     private final String dbUser;
     private final String dbPassword;
+    private final StageMetrics insertMetrics = Metrics.stage("db_insert", "mode", "single");
+    private final StageMetrics batchInsertMetrics = Metrics.stage("db_insert", "mode", "batch");
     
     public DatabaseService(String dbUrl, String dbUser, String dbPassword) {
         this.dbUrl = dbUrl;
@@ -58,6 +62,8 @@ public class DatabaseService {
      * Save a query and its response
      */
     public void saveQueryResult(String query, String response, long processingTimeMs) {
+        long start = insertMetrics.begin();
+        boolean ok = false;
         try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
             String sql = "INSERT INTO queries (query, response, created_at, processing_time_ms) VALUES (?, ?, ?, ?)";
             try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
@@ -68,9 +74,48 @@ public class DatabaseService {
                 pstmt.executeUpdate();
                 
                 logger.debug("Query saved to database - Time: {} ms", processingTimeMs);
+                ok = true;
             }
         } catch (SQLException e) {
             logger.error("Error saving query result", e);
+        } finally {
+            insertMetrics.end(start, ok);
+        }
+    }
+    
+    /**
+     * Save several query results in one JDBC batch and transaction
+     */
+    public void saveQueryResults(List<QueryRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        long start = batchInsertMetrics.begin();
+        boolean ok = false;
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            String sql = "INSERT INTO queries (query, response, created_at, processing_time_ms) VALUES (?, ?, ?, ?)";
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                for (QueryRecord record : records) {
+                    pstmt.setString(1, record.query);
+                    pstmt.setString(2, record.response);
+                    pstmt.setTimestamp(3, Timestamp.valueOf(record.createdAt));
+                    pstmt.setLong(4, record.processingTimeMs);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+                
+                logger.debug("Saved batch of {} query results", records.size());
+                ok = true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            logger.error("Error saving query result batch", e);
+        } finally {
+            batchInsertMetrics.end(start, ok);
         }
     }
     
@@ -1,5 +1,8 @@
 package com.example.mcp;
 
+import com.example.metrics.Metrics;
+import com.example.metrics.StageMetrics;
+
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -61,6 +64,20 @@ public class MCPServerManager {
      * Returns first successful result found
      */
     public MCPServer.MCPToolResult executeTool(String toolName, Map<String, String> params) {
+        // Tool names come from LLM output, so unknown ones share one label
+        StageMetrics metrics = Metrics.stage("mcp_tool", "tool",
+            findServerForTool(toolName) != null ? toolName : "unknown");
+        long start = metrics.begin();
+        MCPServer.MCPToolResult result = null;
+        try {
+            result = runTool(toolName, params);
+            return result;
+        } finally {
+            metrics.end(start, result != null && result.success);
+        }
+    }
+
+    private MCPServer.MCPToolResult runTool(String toolName, Map<String, String> params) {
         for (MCPServer server : servers.values()) {
             if (server.getTools().containsKey(toolName)) {
                 MCPServer.MCPToolResult result = server.executeTool(toolName, params);
@@ -0,0 +1,134 @@
+package com.example.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-memory, lock-free latency histogram
+ * Latencies are counted in microsecond buckets that are exact below 16 us and then have
+ * 8 sub-buckets per power of two (at most 12.5% relative error) up to about 12 days, so
+ * the footprint is a constant 2 x BUCKETS longs however many samples are recorded
+ *
+ * Quantiles cover a sliding window of the last one to two WINDOW_NANOS: samples go into
+ * the current window, and when it ages out the previous one is cleared and reused (after an
+ * idle gap of two windows or more, both are cleared). Sum and count are lifetime totals, as
+ * Prometheus expects for summaries
+ */
+public class LatencyHistogram {
+    static final long WINDOW_NANOS = 60_000_000_000L;
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int MAX_EXPONENT = 40;
+    // Exponents 4..MAX_EXPONENT-1, plus one overflow bucket
+    static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 4) * (1 << SUB_BUCKET_BITS) + 1;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Record one latency
+     */
+    public void record(long nanos) {
+        record(nanos, System.nanoTime());
+    }
+
+    void record(long nanos, long now) {
+        long micros = Math.max(0, nanos / 1000);
+        rotateIfDue(now);
+        current.incrementAndGet(bucketOf(micros));
+        count.increment();
+        sumMicros.add(micros);
+    }
+
+    private void rotateIfDue(long now) {
+        long start = windowStart.get();
+        long elapsed = now - start;
+        if (elapsed < WINDOW_NANOS || !windowStart.compareAndSet(start, now)) {
+            return;
+        }
+        AtomicLongArray expired = previous;
+        clear(expired);
+        if (elapsed >= 2 * WINDOW_NANOS) {
+            // Nothing was recorded for a whole window, so the current samples are stale too
+            clear(current);
+        } else {
+            previous = current;
+            current = expired;
+        }
+    }
+
+    private static void clear(AtomicLongArray window) {
+        for (int i = 0; i < BUCKETS; i++) {
+            window.set(i, 0);
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * (1 << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    /**
+     * Largest latency (in microseconds) that falls in the bucket
+     */
+    static long upperBoundMicros(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int offset = bucket - LINEAR_BUCKETS;
+        int exponent = offset / (1 << SUB_BUCKET_BITS) + 4;
+        int subBucket = offset % (1 << SUB_BUCKET_BITS);
+        return (((long) (1 << SUB_BUCKET_BITS) + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Latency at quantile q (0 < q <= 1) over the recent window, in seconds; 0 with no samples
+     */
+    public double quantileSeconds(double q) {
+        return quantileSeconds(q, System.nanoTime());
+    }
+
+    double quantileSeconds(double q, long nanoTime) {
+        rotateIfDue(nanoTime);
+        AtomicLongArray now = current;
+        AtomicLongArray before = previous;
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = now.get(i) + before.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBoundMicros(i) / 1_000_000.0;
+            }
+        }
+        return upperBoundMicros(BUCKETS - 1) / 1_000_000.0;
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public double sumSeconds() {
+        return sumMicros.sum() / 1_000_000.0;
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics registry, rendered in the Prometheus text format
+ * Stages (HTTP, socket, NLP, agent, MCP tools, DB) are looked up by name and optional
+ * label once and then updated without locks. Components that already keep their own
+ * counters (admission control, jobs, coalescing) register them as callbacks that are only
+ * read when /metrics is scraped
+ */
+public final class Metrics {
+    static final String PREFIX = "scaling_potato_";
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+    private static final Map<String, StageMetrics> stages = new ConcurrentSkipListMap<>();
+    private static final Map<String, Callback> callbacks = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Metrics for a stage, created on first use
+     */
+    public static StageMetrics stage(String stage) {
+        return stages.computeIfAbsent(labels("stage", stage), key -> new StageMetrics());
+    }
+
+    /**
+     * Metrics for one instance of a stage (e.g. one MCP tool), created on first use
+     */
+    public static StageMetrics stage(String stage, String labelName, String labelValue) {
+        return stages.computeIfAbsent(labels("stage", stage) + "," + labels(labelName, labelValue),
+            key -> new StageMetrics());
+    }
+
+    /**
+     * Export a monotonically increasing value read at scrape time (replaces any earlier registration)
+     */
+    public static void counter(String name, String help, LongSupplier value) {
+        callbacks.put(name, new Callback("counter", help, value));
+    }
+
+    /**
+     * Export a current value read at scrape time (replaces any earlier registration)
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        callbacks.put(name, new Callback("gauge", help, value));
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format (version 0.0.4)
+     */
+    public static void writePrometheus(Writer out) throws IOException {
+        String duration = PREFIX + "stage_duration_seconds";
+        header(out, duration, "summary", "Latency per processing stage (quantiles over the last 1-2 minutes)");
+        for (Map.Entry<String, StageMetrics> entry : stages.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency();
+            for (double q : QUANTILES) {
+                sample(out, duration, entry.getKey() + ",quantile=\"" + q + "\"", latency.quantileSeconds(q));
+            }
+            sample(out, duration + "_sum", entry.getKey(), latency.sumSeconds());
+            sample(out, duration + "_count", entry.getKey(), latency.count());
+        }
+
+        String errors = PREFIX + "stage_errors_total";
+        header(out, errors, "counter", "Failed calls per processing stage");
+        for (Map.Entry<String, StageMetrics> entry : stages.entrySet()) {
+            sample(out, errors, entry.getKey(), entry.getValue().errors());
+        }
+
+        String errorRatio = PREFIX + "stage_error_ratio";
+        header(out, errorRatio, "gauge", "Fraction of calls per processing stage that failed, since start");
+        for (Map.Entry<String, StageMetrics> entry : stages.entrySet()) {
+            long calls = entry.getValue().latency().count();
+            sample(out, errorRatio, entry.getKey(), calls == 0 ? 0 : (double) entry.getValue().errors() / calls);
+        }
+
+        String inFlight = PREFIX + "stage_in_flight";
+        header(out, inFlight, "gauge", "Calls currently in progress per processing stage");
+        for (Map.Entry<String, StageMetrics> entry : stages.entrySet()) {
+            sample(out, inFlight, entry.getKey(), entry.getValue().inFlight());
+        }
+
+        for (Map.Entry<String, Callback> entry : callbacks.entrySet()) {
+            String name = PREFIX + entry.getKey();
+            Callback callback = entry.getValue();
+            header(out, name, callback.type, callback.help);
+            sample(out, name, null, callback.value.getAsLong());
+        }
+    }
+
+    private static void header(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name);
+        if (labels != null) {
+            out.write("{" + labels + "}");
+        }
+        out.write(" ");
+        out.write(value == Math.rint(value) && !Double.isInfinite(value) ? String.valueOf((long) value) : String.valueOf(value));
+        out.write("\n");
+    }
+
+    private static String labels(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    private static final class Callback {
+        final String type;
+        final String help;
+        final LongSupplier value;
+
+        Callback(String type, String help, LongSupplier value) {
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
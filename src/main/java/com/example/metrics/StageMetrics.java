@@ -0,0 +1,49 @@
+package com.example.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, error and in-flight tracking for one processing stage
+ * Usage, with no allocation per call:
+ *
+ *   long start = stage.begin();
+ *   boolean ok = false;
+ *   try { ...; ok = true; } finally { stage.end(start, ok); }
+ */
+public class StageMetrics {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+
+    /**
+     * Mark a call as started
+     * @return the start timestamp to pass to end()
+     */
+    public long begin() {
+        inFlight.increment();
+        return System.nanoTime();
+    }
+
+    /**
+     * Mark a call started with begin() as finished
+     */
+    public void end(long start, boolean success) {
+        inFlight.decrement();
+        latency.record(System.nanoTime() - start);
+        if (!success) {
+            errors.increment();
+        }
+    }
+
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    public long errors() {
+        return errors.sum();
+    }
+
+    public long inFlight() {
+        return inFlight.sum();
+    }
+}
@@ -2,11 +2,10 @@ package com.example.nlp;
 
 import com.example.mcp.MCPServerManager;
 import com.example.mcp.MCPServer;
+import com.example.metrics.Metrics;
+import com.example.metrics.StageMetrics;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.net.http.HttpResponse;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -23,11 +22,14 @@ import java.util.regex.Pattern;
  * 5. Agent synthesizes final response
  */
 public class AgentNLPService {
-    private final String apiKey;
+    private final LLMClient llmClient;
     private final String model;
     private final MCPServerManager mcpManager;
     private final int maxAgentIterations;
     private final Logger logger;
+    private final SingleFlight<String> singleFlight = new SingleFlight<>();
+    private final StageMetrics runMetrics = Metrics.stage("agent");
+    private final StageMetrics iterationMetrics = Metrics.stage("agent_iteration");
 
     // Agent execution context
     private static class AgentContext {
@@ -35,17 +37,23 @@ public class AgentNLPService {
         List<String> executedTools;
         List<Map<String, Object>> toolResults;
         int iterations;
+        QueryProgressListener listener;
 
-        AgentContext(String userQuery) {
+        AgentContext(String userQuery, QueryProgressListener listener) {
             this.userQuery = userQuery;
             this.executedTools = new ArrayList<>();
             this.toolResults = new ArrayList<>();
             this.iterations = 0;
+            this.listener = listener;
         }
     }
 
     public AgentNLPService(String apiKey, String model, MCPServerManager mcpManager) {
-        this.apiKey = apiKey;
+        this(new LLMClient(apiKey), model, mcpManager);
+    }
+
+    public AgentNLPService(LLMClient llmClient, String model, MCPServerManager mcpManager) {
+        this.llmClient = llmClient;
         this.model = model != null ? model : "gpt-3.5-turbo";
         this.mcpManager = mcpManager;
         this.maxAgentIterations = 10;
@@ -55,12 +63,32 @@ public class AgentNLPService {
     /**
      * Process query with agentic reasoning
      * Agent can autonomously decide to use tools based on query intent
+     * Identical queries arriving while one is being answered share its agent run
      */
     public String processQueryWithAgent(String userQuery) {
+        return singleFlight.execute(SingleFlight.normalize(userQuery),
+            () -> processQueryWithAgent(userQuery, QueryProgressListener.NONE));
+    }
+
+    /**
+     * How many processQueryWithAgent calls were answered by joining an identical in-flight run
+     */
+    public SingleFlight.Stats getCoalescingStats() {
+        return singleFlight.getStats();
+    }
+
+    /**
+     * Process query with agentic reasoning, reporting tool selection, tool results and
+     * LLM output to the listener as the agent loop progresses
+     * Not coalesced: the progress events belong to this caller
+     */
+    public String processQueryWithAgent(String userQuery, QueryProgressListener listener) {
         long startTime = System.currentTimeMillis();
+        long start = runMetrics.begin();
+        boolean ok = false;
         
         try {
-            AgentContext context = new AgentContext(userQuery);
+            AgentContext context = new AgentContext(userQuery, listener);
             logger.info("Starting agentic processing for: " + userQuery);
 
             // Step 1: Agent analyzes intent and decides if tools are needed
@@ -69,14 +97,19 @@ public class AgentNLPService {
             if (initialResponse != null && shouldUseTools(initialResponse)) {
                 // Step 2-4: Agent execution loop with tool use
                 String finalResponse = agentExecutionLoop(userQuery, context);
+                ok = true;
                 return formatAgentResponse(finalResponse, context, startTime);
             } else {
                 // Direct response without tools
+                listener.onPartialOutput(initialResponse);
+                ok = true;
                 return initialResponse;
             }
         } catch (Exception e) {
             logger.error("Error in agentic processing: " + e.getMessage());
             return "Agent error: " + e.getMessage();
+        } finally {
+            runMetrics.end(start, ok);
         }
     }
 
@@ -108,41 +141,52 @@ public class AgentNLPService {
     private String agentExecutionLoop(String userQuery, AgentContext context) {
         while (context.iterations < maxAgentIterations) {
             context.iterations++;
-            
-            // Get current context message with tool results
-            String contextMessage = buildContextMessage(userQuery, context);
-            
-            // Call LLM with available tools
-            String llmResponse = callLLMWithContext(contextMessage);
-            
-            // Check if LLM wants to execute tools
-            List<String> toolsToExecute = extractToolNames(llmResponse);
-            
-            if (toolsToExecute.isEmpty()) {
-                // No more tools to execute, agent reached conclusion
-                logger.info("Agent concluded after " + context.iterations + " iterations");
-                return llmResponse;
-            }
-            
-            // Execute identified tools
-            logger.info("Agent executing tools: " + toolsToExecute);
-            for (String toolName : toolsToExecute) {
-                MCPServer.MCPToolResult result = mcpManager.executeTool(
-                    toolName,
-                    extractToolParams(llmResponse, toolName)
-                );
+            long start = iterationMetrics.begin();
+            boolean ok = false;
+            try {
+                // Get current context message with tool results
+                String contextMessage = buildContextMessage(userQuery, context);
+                
+                // Call LLM with available tools
+                String llmResponse = callLLMWithContext(contextMessage);
+                
+                // Check if LLM wants to execute tools
+                List<String> toolsToExecute = extractToolNames(llmResponse);
                 
-                if (result.success) {
-                    context.executedTools.add(toolName);
-                    context.toolResults.add(Map.of(
-                        "tool", toolName,
-                        "result", result.data,
-                        "timestamp", System.currentTimeMillis()
-                    ));
-                    logger.info("Tool executed: " + toolName + " -> " + result.data);
-                } else {
-                    logger.error("Tool failed: " + toolName + " - " + result.message);
+                if (toolsToExecute.isEmpty()) {
+                    // No more tools to execute, agent reached conclusion
+                    logger.info("Agent concluded after " + context.iterations + " iterations");
+                    context.listener.onPartialOutput(llmResponse);
+                    ok = true;
+                    return llmResponse;
                 }
+                
+                // Execute identified tools
+                logger.info("Agent executing tools: " + toolsToExecute);
+                context.listener.onToolsSelected(context.iterations, toolsToExecute);
+                for (String toolName : toolsToExecute) {
+                    MCPServer.MCPToolResult result = mcpManager.executeTool(
+                        toolName,
+                        extractToolParams(llmResponse, toolName)
+                    );
+                    
+                    if (result.success) {
+                        context.executedTools.add(toolName);
+                        context.toolResults.add(Map.of(
+                            "tool", toolName,
+                            "result", result.data,
+                            "timestamp", System.currentTimeMillis()
+                        ));
+                        logger.info("Tool executed: " + toolName + " -> " + result.data);
+                        context.listener.onToolResult(toolName, true, String.valueOf(result.data));
+                    } else {
+                        logger.error("Tool failed: " + toolName + " - " + result.message);
+                        context.listener.onToolResult(toolName, false, result.message);
+                    }
+                }
+                ok = true;
+            } finally {
+                iterationMetrics.end(start, ok);
             }
         }
         
@@ -277,28 +321,17 @@ public class AgentNLPService {
      * Call OpenAI API (fallback to mock if no key)
      */
     private String callLLM(String systemPrompt, String userMessage, int maxRetries) {
-        if (apiKey == null || apiKey.isEmpty()) {
+        if (!llmClient.isConfigured()) {
             return generateMockAgentResponse(userMessage);
         }
 
         try {
             String requestBody = buildRequestBody(systemPrompt, userMessage);
-            URL url = new URL("https://api.openai.com/v1/chat/completions");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Authorization", "Bearer " + apiKey);
-            conn.setDoOutput(true);
-
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
+            HttpResponse<String> response = llmClient.chatCompletion(requestBody);
 
-            int responseCode = conn.getResponseCode();
+            int responseCode = response.statusCode();
             if (responseCode == 200) {
-                return parseOpenAIResponse(conn.getInputStream());
+                return parseOpenAIResponse(response.body());
             } else if (responseCode == 429 && maxRetries > 0) {
                 Thread.sleep(1000);
                 return callLLM(systemPrompt, userMessage, maxRetries - 1);
@@ -329,23 +362,16 @@ public class AgentNLPService {
     /**
      * Parse OpenAI response
      */
-    private String parseOpenAIResponse(InputStream is) throws Exception {
-        StringBuilder response = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
-            }
-        }
-
-        // Extract content from JSON response
+    private String parseOpenAIResponse(String body) {
+        // Extract content from JSON response (joined onto one line, as the pattern expects)
+        String response = body.replace("\r", "").replace("\n", "");
         Pattern pattern = Pattern.compile("\"content\": \"([^\"]+)\"");
-        Matcher matcher = pattern.matcher(response.toString());
+        Matcher matcher = pattern.matcher(response);
         if (matcher.find()) {
             return unescape(matcher.group(1));
         }
         
-        return response.toString();
+        return response;
     }
 
     /**
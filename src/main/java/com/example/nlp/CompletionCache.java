@@ -0,0 +1,295 @@
+package com.example.nlp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-process cache of LLM completions
+ * Keys are the model plus the normalized prompt (see {@link #key}), so questions that
+ * differ only in case, spacing or trailing punctuation share one entry. Entries expire
+ * after their TTL and are evicted by a segmented LRU: a new entry starts in a probation
+ * segment and moves to the protected segment (at most 80% of the space) when read again, so
+ * a burst of one-off questions evicts other one-off questions, not the popular answers
+ *
+ * The cache is bounded both by entry count and by weight (characters of prompt plus
+ * completion). It is split into independently locked stripes, so concurrent lookups of
+ * different keys rarely contend
+ */
+public class CompletionCache {
+    private static final int STRIPES = 16;
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param maxEntries total entries kept
+     * @param maxWeight total characters of prompts plus completions kept
+     * @param ttlSeconds how long an entry may be served after it was stored
+     */
+    public CompletionCache(int maxEntries, long maxWeight, long ttlSeconds) {
+        if (maxEntries <= 0 || maxWeight <= 0 || ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Completion cache bounds must be positive");
+        }
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        int entriesPerStripe = Math.max(1, (maxEntries + STRIPES - 1) / STRIPES);
+        long weightPerStripe = Math.max(1, (maxWeight + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(entriesPerStripe, weightPerStripe);
+        }
+    }
+
+    /**
+     * Build a cache from LLM_CACHE_MAX_ENTRIES, LLM_CACHE_MAX_CHARS and LLM_CACHE_TTL_SECONDS
+     * @return the cache, or null when LLM_CACHE_MAX_ENTRIES is 0 (caching disabled)
+     */
+    public static CompletionCache fromEnv(Map<String, String> env) {
+        int maxEntries = (int) longValue(env, "LLM_CACHE_MAX_ENTRIES", 10_000);
+        if (maxEntries <= 0) {
+            return null;
+        }
+        return new CompletionCache(maxEntries,
+            longValue(env, "LLM_CACHE_MAX_CHARS", 16L * 1024 * 1024),
+            longValue(env, "LLM_CACHE_TTL_SECONDS", 3600));
+    }
+
+    /**
+     * Cache key for a prompt sent to a model: the prompt is normalized like a coalescing key
+     * (case, surrounding and repeated whitespace ignored) and trailing ? ! . are dropped
+     */
+    public static String key(String model, String prompt) {
+        String normalized = SingleFlight.normalize(prompt);
+        int end = normalized.length();
+        while (end > 0 && "?!.".indexOf(normalized.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        return model + '\n' + normalized.substring(0, end).trim();
+    }
+
+    /**
+     * Cached completion for key, or null on a miss (expired entries count as misses)
+     */
+    public String get(String key) {
+        String value = stripe(key).get(key, System.nanoTime());
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Store a completion; an entry heavier than a whole stripe is not cached
+     */
+    public void put(String key, String completion) {
+        stripe(key).put(key, completion, System.nanoTime() + ttlNanos);
+    }
+
+    /**
+     * Drop every entry
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    public CacheStats getStats() {
+        int entries = 0;
+        long weight = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                entries += stripe.probation.size() + stripe.protectedSegment.size();
+                weight += stripe.weight;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), entries, weight);
+    }
+
+    private Stripe stripe(String key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static long longValue(Map<String, String> env, String key, long defaultValue) {
+        String value = env.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer for " + key + ": " + value);
+        }
+    }
+
+    /**
+     * One cached completion
+     */
+    private static final class Entry {
+        final String value;
+        final long weight;
+        final long expiresAtNanos;
+
+        Entry(String value, long weight, long expiresAtNanos) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    /**
+     * Independently locked part of the cache with its own segmented LRU
+     * Both segments are access-ordered, so iteration starts at the least recently used entry
+     */
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        final int maxEntries;
+        final long maxWeight;
+        final long maxProtectedWeight;
+        long weight;
+        long protectedWeight;
+
+        Stripe(int maxEntries, long maxWeight) {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+            this.maxProtectedWeight = (long) (maxWeight * PROTECTED_SHARE);
+        }
+
+        String get(String key, long now) {
+            lock.lock();
+            try {
+                Entry entry = protectedSegment.get(key);
+                boolean onProbation = entry == null;
+                if (onProbation) {
+                    entry = probation.get(key);
+                    if (entry == null) {
+                        return null;
+                    }
+                }
+                if (now - entry.expiresAtNanos >= 0) {
+                    remove(key);
+                    expirations.increment();
+                    return null;
+                }
+                if (onProbation) {
+                    // Second hit: promote, demoting protected entries past their share
+                    probation.remove(key);
+                    protectedSegment.put(key, entry);
+                    protectedWeight += entry.weight;
+                    demoteOverflow();
+                }
+                return entry.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(String key, String value, long expiresAtNanos) {
+            long entryWeight = key.length() + (long) value.length();
+            if (entryWeight > maxWeight) {
+                return;
+            }
+            lock.lock();
+            try {
+                remove(key);
+                probation.put(key, new Entry(value, entryWeight, expiresAtNanos));
+                weight += entryWeight;
+                while (probation.size() + protectedSegment.size() > maxEntries || weight > maxWeight) {
+                    evictOne();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(String key) {
+            Entry old = probation.remove(key);
+            if (old == null) {
+                old = protectedSegment.remove(key);
+                if (old != null) {
+                    protectedWeight -= old.weight;
+                }
+            }
+            if (old != null) {
+                weight -= old.weight;
+            }
+        }
+
+        /**
+         * Move least recently used protected entries back to probation (most recent end)
+         */
+        private void demoteOverflow() {
+            Iterator<Map.Entry<String, Entry>> eldest = protectedSegment.entrySet().iterator();
+            while (protectedWeight > maxProtectedWeight && eldest.hasNext()) {
+                Map.Entry<String, Entry> demoted = eldest.next();
+                eldest.remove();
+                protectedWeight -= demoted.getValue().weight;
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        }
+
+        /**
+         * Evict the least recently used probation entry, or protected when probation is empty
+         */
+        private void evictOne() {
+            boolean fromProbation = !probation.isEmpty();
+            Iterator<Map.Entry<String, Entry>> eldest =
+                (fromProbation ? probation : protectedSegment).entrySet().iterator();
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            weight -= evicted.weight;
+            if (!fromProbation) {
+                protectedWeight -= evicted.weight;
+            }
+            evictions.increment();
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                probation.clear();
+                protectedSegment.clear();
+                weight = 0;
+                protectedWeight = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * CacheStats: lookup outcomes, removals and current size
+     */
+    public static class CacheStats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long expirations;
+        public final int entries;
+        public final long weight;
+
+        public CacheStats(long hits, long misses, long evictions, long expirations, int entries, long weight) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.entries = entries;
+            this.weight = weight;
+        }
+    }
+}
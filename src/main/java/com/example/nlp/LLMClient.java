@@ -0,0 +1,169 @@
+package com.example.nlp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared HTTP transport for the OpenAI-compatible chat completions API
+ * One java.net.http.HttpClient serves every NLPService and AgentNLPService call, so
+ * connections are kept alive and reused (multiplexed over HTTP/2 where the endpoint
+ * supports it) instead of paying socket setup and a TLS handshake per query
+ *
+ * LLM_BASE_URL points at the API root (a local stub can stand in for OpenAI);
+ * LLM_CONNECT_TIMEOUT_SECONDS bounds connection setup and LLM_REQUEST_TIMEOUT_SECONDS the
+ * wait for response headers. Response handling runs on virtual threads
+ */
+public class LLMClient implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(LLMClient.class);
+
+    public static final String DEFAULT_BASE_URL = "https://api.openai.com/v1";
+
+    private final String apiKey;
+    private final URI completionsUri;
+    private final Duration connectTimeout;
+    private final Duration requestTimeout;
+    private volatile HttpClient http;
+    private ExecutorService executor;
+
+    public LLMClient(String apiKey, String baseUrl, Duration connectTimeout, Duration requestTimeout) {
+        this.apiKey = apiKey;
+        this.completionsUri = URI.create(stripTrailingSlash(baseUrl) + "/chat/completions");
+        this.connectTimeout = connectTimeout;
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Client for OpenAI with default timeouts
+     */
+    public LLMClient(String apiKey) {
+        this(apiKey, DEFAULT_BASE_URL, Duration.ofSeconds(10), Duration.ofSeconds(60));
+    }
+
+    /**
+     * Build a client from OPENAI_API_KEY, LLM_BASE_URL, LLM_CONNECT_TIMEOUT_SECONDS and
+     * LLM_REQUEST_TIMEOUT_SECONDS
+     */
+    public static LLMClient fromEnv(Map<String, String> env) {
+        String baseUrl = env.getOrDefault("LLM_BASE_URL", "").trim();
+        return new LLMClient(
+            env.getOrDefault("OPENAI_API_KEY", ""),
+            baseUrl.isEmpty() ? DEFAULT_BASE_URL : baseUrl,
+            Duration.ofSeconds(positiveSeconds(env, "LLM_CONNECT_TIMEOUT_SECONDS", 10)),
+            Duration.ofSeconds(positiveSeconds(env, "LLM_REQUEST_TIMEOUT_SECONDS", 60))
+        );
+    }
+
+    /**
+     * Whether an API key is set; without one the services answer with mock responses
+     */
+    public boolean isConfigured() {
+        return apiKey != null && !apiKey.isEmpty();
+    }
+
+    /**
+     * POST a chat completion request and read the whole reply
+     */
+    public HttpResponse<String> chatCompletion(String requestBody) throws IOException, InterruptedException {
+        return client().send(request(requestBody), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * POST a chat completion request without blocking the caller
+     * Cancelling the returned future aborts the request (and releases its stream or
+     * connection); futures derived from it do not pass cancellation back, so callers that
+     * compose it must forward cancel() themselves
+     */
+    public CompletableFuture<HttpResponse<String>> chatCompletionAsync(String requestBody) {
+        return client().sendAsync(request(requestBody), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * POST a chat completion request (normally with "stream": true) and return as soon as
+     * the headers arrive; the caller reads and closes the event stream
+     */
+    public HttpResponse<InputStream> streamChatCompletion(String requestBody) throws IOException, InterruptedException {
+        return client().send(request(requestBody), HttpResponse.BodyHandlers.ofInputStream());
+    }
+
+    public URI getCompletionsUri() {
+        return completionsUri;
+    }
+
+    private HttpRequest request(String requestBody) {
+        return HttpRequest.newBuilder(completionsUri)
+            .timeout(requestTimeout)
+            .header("Authorization", "Bearer " + apiKey)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(requestBody, StandardCharsets.UTF_8))
+            .build();
+    }
+
+    /**
+     * The HttpClient, created on first use so services running on mock responses never
+     * start its selector thread
+     */
+    private HttpClient client() {
+        HttpClient current = http;
+        if (current == null) {
+            synchronized (this) {
+                current = http;
+                if (current == null) {
+                    executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("llm-http-", 0).factory());
+                    current = HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_2)
+                        .connectTimeout(connectTimeout)
+                        .followRedirects(HttpClient.Redirect.NEVER)
+                        .executor(executor)
+                        .build();
+                    http = current;
+                    logger.info("LLM client created for {}", completionsUri);
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Close pooled connections; in-flight requests are aborted
+     */
+    @Override
+    public synchronized void close() {
+        if (http != null) {
+            http.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    private static String stripTrailingSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    private static int positiveSeconds(Map<String, String> env, String key, int defaultValue) {
+        String value = env.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            int seconds = Integer.parseInt(value.trim());
+            if (seconds <= 0) {
+                throw new IllegalArgumentException(key + " must be positive: " + value);
+            }
+            return seconds;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer for " + key + ": " + value);
+        }
+    }
+}
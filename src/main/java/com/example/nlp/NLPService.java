@@ -1,79 +1,420 @@
 package com.example.nlp;
 
+import com.example.metrics.Metrics;
+import com.example.metrics.StageMetrics;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.util.Scanner;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 /**
  * NLP Service that communicates with OpenAI API
  * Processes natural language queries and returns structured responses
+ * Requests go through a shared {@link LLMClient}; with a {@link CompletionCache}, answers to
+ * questions already asked (up to case, spacing and trailing punctuation) are served from it,
+ * and with a {@link NearDuplicateCache} so are rephrasings of them. A
+ * {@link PersistentCompletionStore} keeps exact answers on disk across restarts
  */
 public class NLPService {
     private static final Logger logger = LoggerFactory.getLogger(NLPService.class);
-    private static final String OPENAI_API_URL = "https://api.openai.com/v1/chat/completions";
+    private static final String API_ERROR = "API Error: ";
+    private static final Executor VIRTUAL_THREADS = task -> Thread.ofVirtual().name("nlp-async").start(task);
     
-    private final String apiKey;
+    private final LLMClient llmClient;
     private final String model;
+    private final CompletionCache cache;
+    private final NearDuplicateCache nearCache;
+    private final PersistentCompletionStore store;
+    private final SingleFlight<String> singleFlight = new SingleFlight<>();
+    private final StageMetrics metrics = Metrics.stage("nlp");
     
     public NLPService(String apiKey, String model) {
-        this.apiKey = apiKey;
+        this(new LLMClient(apiKey), model);
+    }
+    
+    public NLPService(LLMClient llmClient, String model) {
+        this(llmClient, model, null);
+    }
+    
+    /**
+     * @param cache completion cache for processQuery and processQueryAsync, or null for none
+     */
+    public NLPService(LLMClient llmClient, String model, CompletionCache cache) {
+        this(llmClient, model, cache, null);
+    }
+    
+    /**
+     * @param cache completion cache for processQuery and processQueryAsync, or null for none
+     * @param nearCache near-duplicate lookup behind the completion cache, or null for none
+     */
+    public NLPService(LLMClient llmClient, String model, CompletionCache cache, NearDuplicateCache nearCache) {
+        this(llmClient, model, cache, nearCache, null);
+    }
+    
+    /**
+     * @param cache completion cache for processQuery and processQueryAsync, or null for none
+     * @param nearCache near-duplicate lookup behind the completion cache, or null for none
+     * @param store on-disk completions consulted after a completion cache miss, or null for none
+     */
+    public NLPService(LLMClient llmClient, String model, CompletionCache cache, NearDuplicateCache nearCache,
+                      PersistentCompletionStore store) {
+        this.llmClient = llmClient;
         this.model = model;
+        this.cache = cache;
+        this.nearCache = nearCache;
+        this.store = store;
+        if (cache != null) {
+            Metrics.counter("completion_cache_hits_total", "Queries answered from the completion cache",
+                () -> cache.getStats().hits);
+            Metrics.counter("completion_cache_misses_total", "Completion cache lookups that found no live entry",
+                () -> cache.getStats().misses);
+            Metrics.counter("completion_cache_evictions_total", "Completion cache entries evicted for size",
+                () -> cache.getStats().evictions);
+            Metrics.counter("completion_cache_expirations_total", "Completion cache entries dropped after their TTL",
+                () -> cache.getStats().expirations);
+            Metrics.gauge("completion_cache_entries", "Entries in the completion cache", () -> cache.getStats().entries);
+            Metrics.gauge("completion_cache_weight_chars", "Characters of prompts and completions in the completion cache",
+                () -> cache.getStats().weight);
+        }
+        if (nearCache != null) {
+            Metrics.counter("near_cache_lookups_total", "Completion cache misses looked up by similarity",
+                () -> nearCache.getStats().lookups);
+            Metrics.counter("near_cache_hits_total", "Lookups that found a similar enough cached query",
+                () -> nearCache.getStats().nearHits);
+            Metrics.counter("near_cache_audits_total", "Near hits answered afresh to check the match",
+                () -> nearCache.getStats().audits);
+            Metrics.counter("near_cache_false_hits_total", "Audited near hits whose cached answer disagreed",
+                () -> nearCache.getStats().falseHits);
+            Metrics.gauge("near_cache_entries", "Entries in the near-duplicate cache", () -> nearCache.getStats().entries);
+        }
+        if (store != null) {
+            Metrics.counter("completion_store_hits_total", "Queries answered from the on-disk completion store",
+                () -> store.getStats().hits);
+            Metrics.counter("completion_store_misses_total", "On-disk completion store lookups that found no live record",
+                () -> store.getStats().misses);
+            Metrics.counter("completion_store_compactions_total", "On-disk completion store segments compacted",
+                () -> store.getStats().compactions);
+            Metrics.gauge("completion_store_entries", "Keys in the on-disk completion store", () -> store.getStats().entries);
+            Metrics.gauge("completion_store_disk_bytes", "Size of the on-disk completion store segment files",
+                () -> store.getStats().diskBytes);
+        }
     }
     
     /**
      * Process an NLP query and return the response
      * @param query The natural language query
      * @return The processed response from OpenAI
+     * Identical queries (see SingleFlight.normalize) arriving while one is being answered share its result
      */
     public String processQuery(String query) {
+        String cached = cached(query);
+        if (cached != null) {
+            return cached;
+        }
+        NearDuplicateCache.Match near = nearMatch(query);
+        if (near != null && !near.audited) {
+            return near.completion;
+        }
+        return singleFlight.execute(SingleFlight.normalize(query), () -> answerQuery(query, near));
+    }
+    
+    /**
+     * Completion cache counters, or null when no cache is configured
+     */
+    public CompletionCache.CacheStats getCacheStats() {
+        return cache != null ? cache.getStats() : null;
+    }
+    
+    /**
+     * Near-duplicate cache counters, or null when no near-duplicate cache is configured
+     */
+    public NearDuplicateCache.NearStats getNearCacheStats() {
+        return nearCache != null ? nearCache.getStats() : null;
+    }
+    
+    /**
+     * On-disk completion store counters, or null when no store is configured
+     */
+    public PersistentCompletionStore.StoreStats getStoreStats() {
+        return store != null ? store.getStats() : null;
+    }
+    
+    /**
+     * Cached answer to the query, from memory or else from disk (and then kept in memory);
+     * mock answers cost nothing and are never cached
+     */
+    private String cached(String query) {
+        if (!llmClient.isConfigured() || (cache == null && store == null)) {
+            return null;
+        }
+        String key = CompletionCache.key(model, query);
+        String completion = cache != null ? cache.get(key) : null;
+        if (completion == null && store != null) {
+            completion = store.get(key);
+            if (completion != null && cache != null) {
+                cache.put(key, completion);
+            }
+        }
+        return completion;
+    }
+    
+    /**
+     * Cached answer to a similar query, looked up after an exact miss
+     */
+    private NearDuplicateCache.Match nearMatch(String query) {
+        return nearCache != null && llmClient.isConfigured() ? nearCache.lookup(model, query) : null;
+    }
+    
+    /**
+     * Cache a completion; near is the audited match the query was answered afresh for, if any
+     */
+    private void remember(String query, String completion, NearDuplicateCache.Match near) {
+        if (cache != null || store != null) {
+            String key = CompletionCache.key(model, query);
+            if (cache != null) {
+                cache.put(key, completion);
+            }
+            if (store != null) {
+                store.put(key, completion);
+            }
+        }
+        if (nearCache != null) {
+            if (near != null) {
+                nearCache.audit(near, completion);
+            }
+            nearCache.put(model, query, completion);
+        }
+    }
+    
+    /**
+     * How many processQuery and processQueryAsync calls were answered by joining an identical in-flight query
+     */
+    public SingleFlight.Stats getCoalescingStats() {
+        return singleFlight.getStats();
+    }
+    
+    private String answerQuery(String query, NearDuplicateCache.Match near) {
+        long start = metrics.begin();
+        boolean ok = false;
         try {
-            if (apiKey == null || apiKey.isEmpty()) {
+            if (!llmClient.isConfigured()) {
                 logger.warn("OpenAI API key not configured, returning mock response");
+                ok = true;
                 return generateMockResponse(query);
             }
             
-            return callOpenAIAPI(query);
+            String response = callOpenAIAPI(query);
+            ok = !response.startsWith(API_ERROR);
+            if (ok) {
+                remember(query, response, near);
+            }
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Error processing query: interrupted";
         } catch (Exception e) {
             logger.error("Error processing NLP query: {}", e.getMessage(), e);
             return "Error processing query: " + e.getMessage();
+        } finally {
+            metrics.end(start, ok);
+        }
+    }
+    
+    /**
+     * Process an NLP query without holding a thread while the LLM answers
+     * The future completes with the same text processQuery would return, error replies
+     * included. Identical concurrent calls share one HTTP request; cancelling a future
+     * detaches that caller, and the request is aborted once every caller sharing it has cancelled
+     * Without an API key there is no request to wait on, and processQuery answers on a
+     * virtual thread instead
+     */
+    public CompletableFuture<String> processQueryAsync(String query) {
+        if (!llmClient.isConfigured()) {
+            return CompletableFuture.supplyAsync(() -> processQuery(query), VIRTUAL_THREADS);
+        }
+        String cached = cached(query);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        NearDuplicateCache.Match near = nearMatch(query);
+        if (near != null && !near.audited) {
+            return CompletableFuture.completedFuture(near.completion);
+        }
+        return singleFlight.executeAsync(SingleFlight.normalize(query), () -> answerQueryAsync(query, near));
+    }
+    
+    private CompletableFuture<String> answerQueryAsync(String query, NearDuplicateCache.Match near) {
+        long start = metrics.begin();
+        CompletableFuture<HttpResponse<String>> call = llmClient.chatCompletionAsync(buildRequestBody(query, false));
+        CompletableFuture<String> result = new CompletableFuture<>();
+        call.whenComplete((response, error) -> {
+            if (error == null) {
+                String text = completionText(response);
+                boolean ok = !text.startsWith(API_ERROR);
+                metrics.end(start, ok);
+                if (ok) {
+                    remember(query, text, near);
+                }
+                result.complete(text);
+                return;
+            }
+            metrics.end(start, false);
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof CancellationException) {
+                logger.debug("NLP query cancelled");
+                result.cancel(false);
+            } else {
+                logger.error("Error processing NLP query: {}", cause.getMessage(), cause);
+                result.complete("Error processing query: " + cause.getMessage());
+            }
+        });
+        // Derived futures do not cancel their source, so pass cancellation on explicitly
+        result.whenComplete((text, error) -> {
+            if (result.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Process an NLP query, passing each piece of the completion to onChunk as it arrives
+     * @param query The natural language query
+     * @param onChunk Receives partial completion text in order
+     * @return The full completion text
+     * Not cached: streamed replies carry the completion text rather than the API response body
+     */
+    public String processQueryStreaming(String query, Consumer<String> onChunk) {
+        long start = metrics.begin();
+        boolean ok = false;
+        try {
+            if (!llmClient.isConfigured()) {
+                logger.warn("OpenAI API key not configured, streaming mock response");
+                String response = generateMockResponse(query);
+                for (String word : response.split("(?<= )")) {
+                    onChunk.accept(word);
+                }
+                ok = true;
+                return response;
+            }
+            
+            String response = streamOpenAIAPI(query, onChunk);
+            ok = !response.startsWith(API_ERROR);
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            String error = "Error processing query: interrupted";
+            onChunk.accept(error);
+            return error;
+        } catch (Exception e) {
+            logger.error("Error streaming NLP query: {}", e.getMessage(), e);
+            String error = "Error processing query: " + e.getMessage();
+            onChunk.accept(error);
+            return error;
+        } finally {
+            metrics.end(start, ok);
         }
     }
     
     /**
      * Call OpenAI API with the query
      */
-    private String callOpenAIAPI(String query) throws IOException {
-        URL url = new URL(OPENAI_API_URL);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Authorization", "Bearer " + apiKey);
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setDoOutput(true);
+    private String callOpenAIAPI(String query) throws IOException, InterruptedException {
+        return completionText(llmClient.chatCompletion(buildRequestBody(query, false)));
+    }
+    
+    /**
+     * Reply text for a chat completion response, or the API error for a failed one
+     */
+    private String completionText(HttpResponse<String> response) {
+        int responseCode = response.statusCode();
+        if (responseCode == 200) {
+            return response.body().isEmpty() ? "No response" : response.body();
+        } else {
+            logger.error("OpenAI API error: HTTP {}", responseCode);
+            return API_ERROR + responseCode;
+        }
+    }
+    
+    /**
+     * Call OpenAI API with stream=true and forward each content delta from the event stream
+     */
+    private String streamOpenAIAPI(String query, Consumer<String> onChunk) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = llmClient.streamChatCompletion(buildRequestBody(query, true));
         
-        String requestBody = String.format(
-            "{\"model\": \"%s\", \"messages\": [{\"role\": \"user\", \"content\": \"%s\"}]}",
+        int responseCode = response.statusCode();
+        if (responseCode != 200) {
+            // Release the connection for reuse
+            response.body().close();
+            logger.error("OpenAI API error: HTTP {}", responseCode);
+            String error = API_ERROR + responseCode;
+            onChunk.accept(error);
+            return error;
+        }
+        
+        StringBuilder completion = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                String data = line.substring("data:".length()).trim();
+                if (data.equals("[DONE]")) {
+                    break;
+                }
+                String delta = extractDeltaContent(data);
+                if (delta != null && !delta.isEmpty()) {
+                    completion.append(delta);
+                    onChunk.accept(delta);
+                }
+            }
+        }
+        return completion.toString();
+    }
+    
+    /**
+     * Build the chat completion request body
+     */
+    private String buildRequestBody(String query, boolean stream) {
+        return String.format(
+            "{\"model\": \"%s\", \"stream\": %s, \"messages\": [{\"role\": \"user\", \"content\": \"%s\"}]}",
             model,
+            stream,
             escapeJson(query)
         );
-        
-        try (var os = connection.getOutputStream()) {
-            byte[] input = requestBody.getBytes(StandardCharsets.UTF_8);
-            os.write(input, 0, input.length);
-        }
-        
-        int responseCode = connection.getResponseCode();
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-            try (Scanner scanner = new Scanner(connection.getInputStream())) {
-                scanner.useDelimiter("\\A");
-                return scanner.hasNext() ? scanner.next() : "No response";
+    }
+    
+    /**
+     * Extract choices[0].delta.content from one streamed chunk, or null if it carries none
+     */
+    private static String extractDeltaContent(String json) {
+        try {
+            JsonObject chunk = JsonParser.parseString(json).getAsJsonObject();
+            JsonArray choices = chunk.getAsJsonArray("choices");
+            if (choices == null || choices.isEmpty()) {
+                return null;
             }
-        } else {
-            logger.error("OpenAI API error: HTTP {}", responseCode);
-            return "API Error: " + responseCode;
+            JsonObject delta = choices.get(0).getAsJsonObject().getAsJsonObject("delta");
+            JsonElement content = delta != null ? delta.get("content") : null;
+            return content != null && !content.isJsonNull() ? content.getAsString() : null;
+        } catch (RuntimeException e) {
+            logger.warn("Skipping malformed stream chunk: {}", e.getMessage());
+            return null;
         }
     }
     
@@ -0,0 +1,481 @@
+package com.example.nlp;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of LLM completions that also answers near-identical rewordings of questions already asked
+ * A query is reduced to its tokens in order (articles and politeness dropped; tense, modal,
+ * negation and operator words kept) and then to the set of adjacent token pairs, so word
+ * order counts. Two queries are similar in proportion to the pairs they share (Jaccard
+ * similarity). Candidates are found through a MinHash signature of each pair set indexed
+ * in banded hash tables (locality-sensitive hashing), so a lookup only compares the query
+ * against entries that share at least one band; a candidate is served when its similarity
+ * reaches the threshold. Queries shorter than MIN_TOKENS tokens are never matched.
+ * Everything is computed locally
+ *
+ * This is approximate: a match can be a different question whose answer differs
+ * A sampled fraction of near hits is audited: the caller answers the query anyway and
+ * reports the fresh completion through {@link #audit}; when it disagrees with the cached one
+ * the match is counted (and logged) as a false hit, which shows whether the threshold is
+ * too loose
+ */
+public class NearDuplicateCache {
+    private static final Logger logger = LoggerFactory.getLogger(NearDuplicateCache.class);
+
+    private static final int BANDS = 16;
+    private static final int ROWS = 4;
+    private static final int HASHES = BANDS * ROWS;
+    /** Completions sharing less than this share of their words are counted as disagreeing */
+    private static final double AUDIT_AGREEMENT = 0.5;
+    /** Queries with fewer tokens than this are only ever answered by exact caching */
+    private static final int MIN_TOKENS = 3;
+    /** Words, numbers (with decimals) and single arithmetic or comparison operators */
+    private static final Pattern TOKEN = Pattern.compile("\\p{L}+|\\p{N}+(?:[.,]\\p{N}+)*|[-+*/=<>%^×÷]");
+    private static final Set<String> FILLER_WORDS = Set.of(
+        "a", "an", "the", "please", "kindly", "hi", "hello", "hey", "thanks");
+
+    private static final long[] HASH_MULTIPLIERS = new long[HASHES];
+    private static final long[] HASH_OFFSETS = new long[HASHES];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x5CA1AB1EL);
+        for (int i = 0; i < HASHES; i++) {
+            HASH_MULTIPLIERS[i] = random.nextLong() | 1;
+            HASH_OFFSETS[i] = random.nextLong();
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final double threshold;
+    private final double auditRate;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Access-ordered, so iteration starts at the least recently used entry */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Long, List<Entry>> buckets = new HashMap<>();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder nearHits = new LongAdder();
+    private final LongAdder audits = new LongAdder();
+    private final LongAdder falseHits = new LongAdder();
+
+    /**
+     * @param maxEntries entries kept; the least recently used are evicted past it
+     * @param ttlSeconds how long an entry may be served after it was stored
+     * @param threshold token-pair similarity (0-1] a cached query needs to answer another
+     * @param auditRate share [0-1] of near hits answered afresh to check the match
+     */
+    public NearDuplicateCache(int maxEntries, long ttlSeconds, double threshold, double auditRate) {
+        if (maxEntries <= 0 || ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Near-duplicate cache bounds must be positive");
+        }
+        if (!(threshold > 0 && threshold <= 1)) {
+            throw new IllegalArgumentException("Near-duplicate threshold must be in (0, 1]: " + threshold);
+        }
+        if (!(auditRate >= 0 && auditRate <= 1)) {
+            throw new IllegalArgumentException("Near-duplicate audit rate must be in [0, 1]: " + auditRate);
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.threshold = threshold;
+        this.auditRate = auditRate;
+    }
+
+    /**
+     * Build a cache from LLM_NEAR_CACHE_MAX_ENTRIES, LLM_NEAR_CACHE_THRESHOLD,
+     * LLM_NEAR_CACHE_AUDIT_RATE and LLM_CACHE_TTL_SECONDS
+     * @return the cache, or null when LLM_NEAR_CACHE_MAX_ENTRIES is 0 (the default: disabled)
+     */
+    public static NearDuplicateCache fromEnv(Map<String, String> env) {
+        int maxEntries = (int) number(env, "LLM_NEAR_CACHE_MAX_ENTRIES", 0);
+        if (maxEntries <= 0) {
+            return null;
+        }
+        return new NearDuplicateCache(maxEntries,
+            (long) number(env, "LLM_CACHE_TTL_SECONDS", 3600),
+            number(env, "LLM_NEAR_CACHE_THRESHOLD", 0.8),
+            number(env, "LLM_NEAR_CACHE_AUDIT_RATE", 0.02));
+    }
+
+    /**
+     * Most similar live entry for a query sent to model
+     * @return the match, or null when no entry reaches the threshold (or the query is too
+     *         short to compare). A match with {@link Match#audited} set must not be served: the
+     *         caller answers the query itself and passes the answer to {@link #audit}
+     */
+    public Match lookup(String model, String query) {
+        int[] shingles = shingles(query);
+        if (shingles.length == 0) {
+            return null;
+        }
+        lookups.increment();
+        long[] bandKeys = bandKeys(model, signature(shingles));
+        long now = System.nanoTime();
+
+        lock.lock();
+        try {
+            Set<Entry> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (long bandKey : bandKeys) {
+                List<Entry> bucket = buckets.get(bandKey);
+                if (bucket != null) {
+                    candidates.addAll(bucket);
+                }
+            }
+            Entry best = null;
+            double bestSimilarity = 0;
+            List<Entry> expired = new ArrayList<>();
+            for (Entry candidate : candidates) {
+                if (now - candidate.expiresAtNanos >= 0) {
+                    expired.add(candidate);
+                    continue;
+                }
+                if (!candidate.model.equals(model)) {
+                    continue;
+                }
+                double similarity = jaccard(shingles, candidate.shingles);
+                if (similarity >= threshold && similarity > bestSimilarity) {
+                    best = candidate;
+                    bestSimilarity = similarity;
+                }
+            }
+            for (Entry entry : expired) {
+                remove(entry);
+            }
+            if (best == null) {
+                return null;
+            }
+            entries.get(best.key);
+            nearHits.increment();
+            boolean audited = auditRate > 0 && ThreadLocalRandom.current().nextDouble() < auditRate;
+            return new Match(query, best.query, best.completion, bestSimilarity, audited);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Index the completion of a query sent to model
+     */
+    public void put(String model, String query, String completion) {
+        int[] shingles = shingles(query);
+        if (shingles.length == 0) {
+            return;
+        }
+        // Queries with the same token pairs share one entry, the latest completion winning
+        String key = model + '\n' + Arrays.toString(shingles);
+        Entry entry = new Entry(key, model, query, shingles, bandKeys(model, signature(shingles)), completion,
+            System.nanoTime() + ttlNanos);
+
+        lock.lock();
+        try {
+            Entry old = entries.get(key);
+            if (old != null) {
+                remove(old);
+            }
+            entries.put(key, entry);
+            for (long bandKey : entry.bandKeys) {
+                buckets.computeIfAbsent(bandKey, k -> new ArrayList<>(1)).add(entry);
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                unindex(evicted);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compare an audited match with the completion the query actually got; chat completion
+     * response bodies are compared by their message content only
+     * @return whether the cached completion would have been a false hit
+     */
+    public boolean audit(Match match, String freshCompletion) {
+        audits.increment();
+        double agreement = jaccard(terms(messageContent(match.completion)), terms(messageContent(freshCompletion)));
+        if (agreement >= AUDIT_AGREEMENT) {
+            return false;
+        }
+        falseHits.increment();
+        logger.warn("Near-duplicate false hit (similarity {}, answer agreement {}): \"{}\" matched \"{}\"",
+            String.format(Locale.ROOT, "%.2f", match.similarity), String.format(Locale.ROOT, "%.2f", agreement),
+            match.query, match.matchedQuery);
+        return true;
+    }
+
+    /**
+     * Drop every entry
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            buckets.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public NearStats getStats() {
+        int size;
+        lock.lock();
+        try {
+            size = entries.size();
+        } finally {
+            lock.unlock();
+        }
+        return new NearStats(lookups.sum(), nearHits.sum(), audits.sum(), falseHits.sum(), size);
+    }
+
+    /**
+     * Token-pair similarity of two queries, 0 (nothing shared, or either too short) to 1
+     */
+    public static double similarity(String a, String b) {
+        return jaccard(shingles(a), shingles(b));
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key, entry);
+        unindex(entry);
+    }
+
+    private void unindex(Entry entry) {
+        for (long bandKey : entry.bandKeys) {
+            List<Entry> bucket = buckets.get(bandKey);
+            if (bucket != null) {
+                bucket.remove(entry);
+                if (bucket.isEmpty()) {
+                    buckets.remove(bandKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tokens of a text in order, lowercased, filler words dropped
+     */
+    static List<String> tokens(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        Matcher matcher = TOKEN.matcher(text.toLowerCase(Locale.ROOT));
+        while (matcher.find()) {
+            String token = matcher.group();
+            if (!FILLER_WORDS.contains(token)) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Sorted distinct hashes of the adjacent token pairs of a query; empty when the query has
+     * fewer than MIN_TOKENS tokens
+     */
+    static int[] shingles(String query) {
+        List<String> tokens = tokens(query);
+        if (tokens.size() < MIN_TOKENS) {
+            return new int[0];
+        }
+        int[] hashes = new int[tokens.size() - 1];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = (tokens.get(i) + ' ' + tokens.get(i + 1)).hashCode();
+        }
+        return Arrays.stream(hashes).sorted().distinct().toArray();
+    }
+
+    /**
+     * choices[0].message.content of a chat completion response body, or the completion itself
+     * when it is not one (the keys and ids every body carries would otherwise dominate the vocabulary)
+     */
+    static String messageContent(String completion) {
+        if (completion == null || !completion.trim().startsWith("{")) {
+            return completion;
+        }
+        try {
+            JsonArray choices = JsonParser.parseString(completion).getAsJsonObject().getAsJsonArray("choices");
+            if (choices == null || choices.isEmpty()) {
+                return completion;
+            }
+            JsonObject message = choices.get(0).getAsJsonObject().getAsJsonObject("message");
+            JsonElement content = message != null ? message.get("content") : null;
+            return content != null && !content.isJsonNull() ? content.getAsString() : completion;
+        } catch (RuntimeException e) {
+            return completion;
+        }
+    }
+
+    /**
+     * Sorted distinct hashes of the tokens of a completion; answers to the same question
+     * share vocabulary more reliably than phrasing
+     */
+    private static int[] terms(String text) {
+        return tokens(text).stream().mapToInt(String::hashCode).sorted().distinct().toArray();
+    }
+
+    /**
+     * |a ∩ b| / |a ∪ b| of two sorted distinct arrays
+     */
+    private static double jaccard(int[] a, int[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return 0;
+        }
+        int shared = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] == b[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (double) shared / (a.length + b.length - shared);
+    }
+
+    /**
+     * MinHash signature: the minimum of each of the HASHES hash functions over the shingles
+     */
+    private static long[] signature(int[] shingles) {
+        long[] signature = new long[HASHES];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        for (int shingle : shingles) {
+            for (int i = 0; i < HASHES; i++) {
+                long hash = mix(shingle * HASH_MULTIPLIERS[i] + HASH_OFFSETS[i]);
+                if (hash < signature[i]) {
+                    signature[i] = hash;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * One hash table key per band of ROWS signature values; two shingle sets with similarity s
+     * share at least one band with probability 1 - (1 - s^ROWS)^BANDS
+     */
+    private static long[] bandKeys(String model, long[] signature) {
+        long[] keys = new long[BANDS];
+        for (int band = 0; band < BANDS; band++) {
+            long key = model.hashCode() * 31L + band;
+            for (int row = 0; row < ROWS; row++) {
+                key = mix(key * 31 + signature[band * ROWS + row]);
+            }
+            keys[band] = key;
+        }
+        return keys;
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static double number(Map<String, String> env, String key, double defaultValue) {
+        String value = env.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number for " + key + ": " + value);
+        }
+    }
+
+    /**
+     * One indexed completion
+     */
+    private static final class Entry {
+        final String key;
+        final String model;
+        final String query;
+        final int[] shingles;
+        final long[] bandKeys;
+        final String completion;
+        final long expiresAtNanos;
+
+        Entry(String key, String model, String query, int[] shingles, long[] bandKeys, String completion, long expiresAtNanos) {
+            this.key = key;
+            this.model = model;
+            this.query = query;
+            this.shingles = shingles;
+            this.bandKeys = bandKeys;
+            this.completion = completion;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    /**
+     * Match: the cached query a lookup matched, its completion and how similar the two are
+     */
+    public static class Match {
+        public final String query;
+        public final String matchedQuery;
+        public final String completion;
+        public final double similarity;
+        public final boolean audited;
+
+        public Match(String query, String matchedQuery, String completion, double similarity, boolean audited) {
+            this.query = query;
+            this.matchedQuery = matchedQuery;
+            this.completion = completion;
+            this.similarity = similarity;
+            this.audited = audited;
+        }
+    }
+
+    /**
+     * NearStats: lookups, matches found, audited matches and the audits that disagreed
+     */
+    public static class NearStats {
+        public final long lookups;
+        public final long nearHits;
+        public final long audits;
+        public final long falseHits;
+        public final int entries;
+
+        public NearStats(long lookups, long nearHits, long audits, long falseHits, int entries) {
+            this.lookups = lookups;
+            this.nearHits = nearHits;
+            this.audits = audits;
+            this.falseHits = falseHits;
+            this.entries = entries;
+        }
+    }
+}
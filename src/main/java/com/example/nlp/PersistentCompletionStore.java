@@ -0,0 +1,573 @@
+package com.example.nlp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk completion cache that survives restarts
+ * Completions are appended to fixed-size segment files that are memory-mapped, so reads
+ * come from the page cache and values never sit on the heap. A hash index of 16-byte slots
+ * (key hash, segment, offset) lives off-heap and points at the latest record of each key;
+ * on open it is rebuilt by walking the record headers, so a restart serves warm answers
+ * at once without loading the completions themselves
+ *
+ * Record: magic, key length, value length, CRC32 of key and value, expiry (epoch millis),
+ * then the UTF-8 key and value, padded to 8 bytes. A torn record at the end of the newest
+ * segment is dropped on open. When a new segment is started, older segments holding
+ * mostly overwritten records are compacted (live records copied forward, file deleted),
+ * and the oldest segments are dropped while the files exceed the disk budget
+ */
+public class PersistentCompletionStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(PersistentCompletionStore.class);
+
+    private static final int MAGIC = 0x43504331;
+    private static final int HEADER_BYTES = 24;
+    private static final int SLOT_BYTES = 16;
+    private static final long INITIAL_SLOTS = 1024;
+    private static final double MAX_LOAD = 0.7;
+    /** Sealed segments with less than this share of live bytes are compacted */
+    private static final double COMPACT_BELOW = 0.5;
+    private static final Pattern SEGMENT_FILE = Pattern.compile("segment-(\\d+)\\.seg");
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED;
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxDiskBytes;
+    private final long ttlMillis;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private Segment active;
+    private Arena indexArena;
+    private MemorySegment index;
+    private long mask;
+    private long entries;
+    private long compactions;
+    private boolean maintaining;
+    private boolean closed;
+
+    /**
+     * Open (or create) the store in directory and rebuild its index from the segments there
+     * @param segmentBytes size of each segment file; also the largest record stored
+     * @param maxDiskBytes disk budget for all segments, at least two segments
+     * @param ttlSeconds how long a stored completion may be served
+     */
+    public PersistentCompletionStore(Path directory, int segmentBytes, long maxDiskBytes, long ttlSeconds) throws IOException {
+        if (segmentBytes < 4096 || maxDiskBytes < 2L * segmentBytes || ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Completion store needs segments of at least 4096 bytes, "
+                + "a disk budget of two segments and a positive TTL");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+
+        long started = System.nanoTime();
+        Files.createDirectories(directory);
+        allocateIndex(INITIAL_SLOTS);
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                Matcher matcher = SEGMENT_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    ids.add(Integer.parseInt(matcher.group(1)));
+                }
+            });
+        }
+        ids.sort(null);
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = map(ids.get(i), Files.size(segmentPath(ids.get(i))));
+            segments.put(segment.id, segment);
+            // Only the newest segment can end in a torn write; older ones are checked on read
+            recover(segment, i == ids.size() - 1);
+        }
+        active = segments.isEmpty() ? startSegment(1) : segments.lastEntry().getValue();
+        maintain();
+        logger.info("Completion store opened from {}: {} entries in {} segments ({} ms)", directory, entries,
+            segments.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    /**
+     * Open the store in LLM_CACHE_DIR with LLM_CACHE_SEGMENT_BYTES, LLM_CACHE_MAX_DISK_BYTES
+     * and LLM_CACHE_TTL_SECONDS
+     * @return the store, or null when LLM_CACHE_DIR is not set (persistence disabled)
+     */
+    public static PersistentCompletionStore fromEnv(Map<String, String> env) throws IOException {
+        String dir = env.getOrDefault("LLM_CACHE_DIR", "").trim();
+        if (dir.isEmpty()) {
+            return null;
+        }
+        return new PersistentCompletionStore(Path.of(dir),
+            (int) longValue(env, "LLM_CACHE_SEGMENT_BYTES", 64L * 1024 * 1024),
+            longValue(env, "LLM_CACHE_MAX_DISK_BYTES", 1024L * 1024 * 1024),
+            longValue(env, "LLM_CACHE_TTL_SECONDS", 3600));
+    }
+
+    /**
+     * Stored completion for key, or null when absent, expired or failing its checksum
+     */
+    public String get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        MemorySegment keySegment = MemorySegment.ofArray(keyBytes);
+        long hash = hash(keySegment, 0, keyBytes.length);
+
+        lock.readLock().lock();
+        try {
+            long slot = closed ? -1 : find(hash, keySegment, 0, keyBytes.length);
+            if (slot < 0 || isEmpty(slot)) {
+                misses.increment();
+                return null;
+            }
+            MemorySegment data = segments.get(slotSegment(slot)).data;
+            long offset = slotOffset(slot);
+            if (data.get(LONG, offset + 16) <= System.currentTimeMillis()) {
+                misses.increment();
+                return null;
+            }
+            byte[] value = new byte[data.get(INT, offset + 8)];
+            MemorySegment.copy(data, ValueLayout.JAVA_BYTE, offset + HEADER_BYTES + keyBytes.length, value, 0, value.length);
+            if (crc(keyBytes, value) != data.get(INT, offset + 12)) {
+                logger.warn("Skipping corrupt completion record in segment {} at {}", slotSegment(slot), offset);
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return new String(value, StandardCharsets.UTF_8);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Append a completion; it replaces any earlier one for the key
+     * A record larger than a segment is not stored, and write failures are logged, not thrown
+     */
+    public void put(String key, String completion) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] value = completion.getBytes(StandardCharsets.UTF_8);
+        long length = recordLength(keyBytes.length, value.length);
+        if (keyBytes.length == 0 || length > segmentBytes) {
+            return;
+        }
+        long hash = hash(MemorySegment.ofArray(keyBytes), 0, keyBytes.length);
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            reserve(length);
+            MemorySegment data = active.data;
+            long offset = active.end;
+            data.set(INT, offset, MAGIC);
+            data.set(INT, offset + 4, keyBytes.length);
+            data.set(INT, offset + 8, value.length);
+            data.set(INT, offset + 12, crc(keyBytes, value));
+            data.set(LONG, offset + 16, expiresAt);
+            MemorySegment.copy(keyBytes, 0, data, ValueLayout.JAVA_BYTE, offset + HEADER_BYTES, keyBytes.length);
+            MemorySegment.copy(value, 0, data, ValueLayout.JAVA_BYTE, offset + HEADER_BYTES + keyBytes.length, value.length);
+            active.end += length;
+            index(active, offset, hash, keyBytes.length, length);
+        } catch (IOException e) {
+            logger.warn("Could not store completion: {}", e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public StoreStats getStats() {
+        lock.readLock().lock();
+        try {
+            long diskBytes = 0;
+            for (Segment segment : segments.values()) {
+                diskBytes += segment.data.byteSize();
+            }
+            return new StoreStats(hits.sum(), misses.sum(), entries, segments.size(), diskBytes, compactions);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Flush the newest segment and unmap everything; later calls miss and skip writes
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            active.data.force();
+            for (Segment segment : segments.values()) {
+                segment.arena.close();
+            }
+            segments.clear();
+            indexArena.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Walk the records of a segment into the index, stopping at the first invalid header
+     * (or, when verify is set, failing checksum) and zeroing whatever follows it
+     */
+    private void recover(Segment segment, boolean verify) {
+        MemorySegment data = segment.data;
+        long offset = 0;
+        while (offset + HEADER_BYTES <= data.byteSize() && data.get(INT, offset) == MAGIC) {
+            int keyLength = data.get(INT, offset + 4);
+            int valueLength = data.get(INT, offset + 8);
+            long length = recordLength(keyLength, valueLength);
+            if (keyLength <= 0 || valueLength < 0 || offset + length > data.byteSize()) {
+                break;
+            }
+            if (verify) {
+                CRC32 crc = new CRC32();
+                crc.update(data.asSlice(offset + HEADER_BYTES, (long) keyLength + valueLength).toArray(ValueLayout.JAVA_BYTE));
+                if ((int) crc.getValue() != data.get(INT, offset + 12)) {
+                    break;
+                }
+            }
+            index(segment, offset, hash(data, offset + HEADER_BYTES, keyLength), keyLength, length);
+            offset += length;
+        }
+        if (offset < data.byteSize() && data.get(INT, offset) != 0) {
+            logger.warn("Dropping torn completion record at the end of segment {}", segment.id);
+            data.asSlice(offset).fill((byte) 0);
+        }
+        segment.end = offset;
+    }
+
+    /**
+     * Point the key of a record at it, releasing the record it replaces
+     */
+    private void index(Segment segment, long offset, long hash, int keyLength, long length) {
+        if (entries + 1 > (mask + 1) * MAX_LOAD) {
+            allocateIndex((mask + 1) * 2);
+        }
+        long slot = find(hash, segment.data, offset + HEADER_BYTES, keyLength);
+        if (isEmpty(slot)) {
+            entries++;
+        } else {
+            Segment previous = segments.get(slotSegment(slot));
+            long previousOffset = slotOffset(slot);
+            previous.live -= recordLength(previous.data.get(INT, previousOffset + 4), previous.data.get(INT, previousOffset + 8));
+        }
+        setSlot(slot, hash, segment.id, offset);
+        segment.live += length;
+    }
+
+    /**
+     * Make room for a record in the active segment, starting a new one when it is full
+     */
+    private void reserve(long length) throws IOException {
+        if (active.end + length <= active.data.byteSize()) {
+            return;
+        }
+        active.data.force();
+        active = startSegment(segments.lastKey() + 1);
+        maintain();
+    }
+
+    /**
+     * Compact mostly dead segments, then drop the oldest while over the disk budget
+     */
+    private void maintain() throws IOException {
+        if (maintaining) {
+            return;
+        }
+        maintaining = true;
+        try {
+            for (Segment segment : new ArrayList<>(segments.values())) {
+                if (segment != active && segment.live < segment.end * COMPACT_BELOW) {
+                    compact(segment);
+                }
+            }
+            while (diskBytes() > maxDiskBytes && segments.size() > 1) {
+                Segment oldest = segments.firstEntry().getValue();
+                for (long[] record : indexedRecords(oldest)) {
+                    deleteSlot(slotOf(oldest, record));
+                }
+                release(oldest);
+                logger.info("Dropped completion store segment {} to stay within {} bytes", oldest.id, maxDiskBytes);
+            }
+        } finally {
+            maintaining = false;
+        }
+    }
+
+    /**
+     * Copy the live, unexpired records of a segment into the active one and delete it
+     */
+    private void compact(Segment segment) throws IOException {
+        long now = System.currentTimeMillis();
+        for (long[] record : indexedRecords(segment)) {
+            long offset = record[1];
+            long slot = slotOf(segment, record);
+            if (segment.data.get(LONG, offset + 16) <= now) {
+                deleteSlot(slot);
+                continue;
+            }
+            long length = recordLength(segment.data.get(INT, offset + 4), segment.data.get(INT, offset + 8));
+            reserve(length);
+            MemorySegment.copy(segment.data, offset, active.data, active.end, length);
+            setSlot(slot, record[0], active.id, active.end);
+            active.end += length;
+            active.live += length;
+        }
+        release(segment);
+        compactions++;
+    }
+
+    /**
+     * Hash and offset of every record of the segment the index still points at
+     */
+    private List<long[]> indexedRecords(Segment segment) {
+        MemorySegment data = segment.data;
+        List<long[]> records = new ArrayList<>();
+        for (long offset = 0; offset < segment.end; ) {
+            int keyLength = data.get(INT, offset + 4);
+            long hash = hash(data, offset + HEADER_BYTES, keyLength);
+            long slot = find(hash, data, offset + HEADER_BYTES, keyLength);
+            if (!isEmpty(slot) && slotSegment(slot) == segment.id && slotOffset(slot) == offset) {
+                records.add(new long[] {hash, offset});
+            }
+            offset += recordLength(keyLength, data.get(INT, offset + 8));
+        }
+        return records;
+    }
+
+    /**
+     * Current index slot of a record from indexedRecords; deletions shift slots, so it is
+     * looked up again rather than remembered
+     */
+    private long slotOf(Segment segment, long[] record) {
+        long offset = record[1];
+        return find(record[0], segment.data, offset + HEADER_BYTES, segment.data.get(INT, offset + 4));
+    }
+
+    private Segment startSegment(int id) throws IOException {
+        Segment segment = map(id, segmentBytes);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment map(int id, long size) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(segmentPath(id),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(id, arena, channel.map(FileChannel.MapMode.READ_WRITE, 0, size, arena));
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    private void release(Segment segment) throws IOException {
+        segments.remove(segment.id);
+        segment.arena.close();
+        Files.deleteIfExists(segmentPath(segment.id));
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("segment-%08d.seg", id));
+    }
+
+    private long diskBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.data.byteSize();
+        }
+        return total;
+    }
+
+    // Index: open addressing with linear probing; a zero hash marks an empty slot
+
+    private void allocateIndex(long slots) {
+        Arena oldArena = indexArena;
+        MemorySegment old = index;
+        indexArena = Arena.ofShared();
+        index = indexArena.allocate(slots * SLOT_BYTES, 8);
+        index.fill((byte) 0);
+        mask = slots - 1;
+        if (old != null) {
+            for (long offset = 0; offset < old.byteSize(); offset += SLOT_BYTES) {
+                long hash = old.get(LONG, offset);
+                if (hash != 0) {
+                    long slot = hash & mask;
+                    while (!isEmpty(slot)) {
+                        slot = (slot + 1) & mask;
+                    }
+                    MemorySegment.copy(old, offset, index, slot * SLOT_BYTES, SLOT_BYTES);
+                }
+            }
+            oldArena.close();
+        }
+    }
+
+    /**
+     * Slot holding the key, or the empty slot where it would go
+     */
+    private long find(long hash, MemorySegment key, long keyOffset, int keyLength) {
+        long slot = hash & mask;
+        while (!isEmpty(slot)) {
+            if (slotHash(slot) == hash) {
+                MemorySegment data = segments.get(slotSegment(slot)).data;
+                long offset = slotOffset(slot);
+                if (data.get(INT, offset + 4) == keyLength && MemorySegment.mismatch(
+                        data, offset + HEADER_BYTES, offset + HEADER_BYTES + keyLength,
+                        key, keyOffset, keyOffset + keyLength) < 0) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empty a slot, shifting back later entries of its probe run so lookups still reach them
+     */
+    private void deleteSlot(long slot) {
+        long hole = slot;
+        long next = (slot + 1) & mask;
+        while (!isEmpty(next)) {
+            long home = slotHash(next) & mask;
+            // The entry may fill the hole unless its home lies cyclically in (hole, next]
+            boolean homeAfterHole = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+            if (!homeAfterHole) {
+                MemorySegment.copy(index, next * SLOT_BYTES, index, hole * SLOT_BYTES, SLOT_BYTES);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        index.asSlice(hole * SLOT_BYTES, SLOT_BYTES).fill((byte) 0);
+        entries--;
+    }
+
+    private boolean isEmpty(long slot) {
+        return slotHash(slot) == 0;
+    }
+
+    private long slotHash(long slot) {
+        return index.get(LONG, slot * SLOT_BYTES);
+    }
+
+    private int slotSegment(long slot) {
+        return index.get(INT, slot * SLOT_BYTES + 8);
+    }
+
+    private long slotOffset(long slot) {
+        return Integer.toUnsignedLong(index.get(INT, slot * SLOT_BYTES + 12));
+    }
+
+    private void setSlot(long slot, long hash, int segmentId, long offset) {
+        index.set(LONG, slot * SLOT_BYTES, hash);
+        index.set(INT, slot * SLOT_BYTES + 8, segmentId);
+        index.set(INT, slot * SLOT_BYTES + 12, (int) offset);
+    }
+
+    private static long recordLength(int keyLength, int valueLength) {
+        return (HEADER_BYTES + (long) keyLength + valueLength + 7) & ~7L;
+    }
+
+    /**
+     * FNV-1a over the key bytes, finished with the MurmurHash3 mixer; never 0
+     */
+    private static long hash(MemorySegment bytes, long offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (long i = offset; i < offset + length; i++) {
+            h = (h ^ (bytes.get(ValueLayout.JAVA_BYTE, i) & 0xff)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+    private static int crc(byte[] key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+
+    private static long longValue(Map<String, String> env, String key, long defaultValue) {
+        String value = env.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer for " + key + ": " + value);
+        }
+    }
+
+    /**
+     * One mapped segment file; end is where the next record goes
+     */
+    private static final class Segment {
+        final int id;
+        final Arena arena;
+        final MemorySegment data;
+        long end;
+        long live;
+
+        Segment(int id, Arena arena, MemorySegment data) {
+            this.id = id;
+            this.arena = arena;
+            this.data = data;
+        }
+    }
+
+    /**
+     * StoreStats: lookup outcomes, indexed keys, segment files and compactions run
+     */
+    public static class StoreStats {
+        public final long hits;
+        public final long misses;
+        public final long entries;
+        public final int segments;
+        public final long diskBytes;
+        public final long compactions;
+
+        public StoreStats(long hits, long misses, long entries, int segments, long diskBytes, long compactions) {
+            this.hits = hits;
+            this.misses = misses;
+            this.entries = entries;
+            this.segments = segments;
+            this.diskBytes = diskBytes;
+            this.compactions = compactions;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.nlp;
+
+import java.util.List;
+
+/**
+ * Receives progress while a query is being answered, so callers can show intermediate
+ * results (tool selection, tool output, partial LLM text) before the final response
+ * Every method has a no-op default; callbacks run on the thread processing the query
+ */
+public interface QueryProgressListener {
+    QueryProgressListener NONE = new QueryProgressListener() { };
+
+    /**
+     * The agent chose tools to run in the given iteration
+     */
+    default void onToolsSelected(int iteration, List<String> tools) {
+    }
+
+    /**
+     * An MCP tool finished; result is the tool's data, or its error message on failure
+     */
+    default void onToolResult(String tool, boolean success, String result) {
+    }
+
+    /**
+     * A piece of LLM output, delivered in order
+     */
+    default void onPartialOutput(String text) {
+    }
+}
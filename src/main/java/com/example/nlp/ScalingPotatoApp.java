@@ -4,6 +4,7 @@ import com.example.db.DatabaseService;
 import com.example.mcp.DatabaseMCPServer;
 import com.example.mcp.MCPServerManager;
 import com.example.server.QueryServer;
+import com.example.server.ServerConfig;
 import com.example.server.WebServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,17 +40,29 @@ public class ScalingPotatoApp {
             String dbUrl = env.getOrDefault("DATABASE_URL", "jdbc:h2:mem:scalingpotato");
             String dbUser = env.getOrDefault("DATABASE_USER", "sa");
             String dbPassword = env.getOrDefault("DATABASE_PASSWORD", "");
-            int port = Integer.parseInt(env.getOrDefault("PORT", "9999"));
-            int threadPoolSize = Integer.parseInt(env.getOrDefault("THREAD_POOL_SIZE", "50"));
+            ServerConfig serverConfig = ServerConfig.fromEnv(env);
+            int port = serverConfig.port;
             
             logger.info("Configuration loaded:");
             logger.info("  Port: {}", port);
-            logger.info("  Thread Pool Size: {}", threadPoolSize);
+            logger.info("  Engine: {}", serverConfig.engine);
+            logger.info("  Executor: {}", serverConfig.executorMode);
+            logger.info("  Thread Pool Size: {}", serverConfig.threadPoolSize);
+            logger.info("  Max Connections: {}", serverConfig.maxConnections);
+            logger.info("  Max Queued Connections: {}", serverConfig.maxQueuedConnections);
             logger.info("  Database: {}", dbUrl);
             logger.info("  OpenAI API configured: {}", openaiApiKey != null && !openaiApiKey.isEmpty());
             
+            // One pooled LLM transport shared by both NLP services
+            LLMClient llmClient = LLMClient.fromEnv(env);
+            logger.info("  LLM endpoint: {}", llmClient.getCompletionsUri());
+            
+            // Completions persisted on disk, warm from the previous run
+            PersistentCompletionStore completionStore = PersistentCompletionStore.fromEnv(env);
+            
             // Initialize services
-            NLPService nlpService = new NLPService(openaiApiKey, "gpt-3.5-turbo");
+            NLPService nlpService = new NLPService(llmClient, "gpt-3.5-turbo",
+                CompletionCache.fromEnv(env), NearDuplicateCache.fromEnv(env), completionStore);
             DatabaseService dbService = new DatabaseService(dbUrl, dbUser, dbPassword);
             
             // Initialize MCP Manager with Database MCP Server
@@ -59,29 +72,56 @@ public class ScalingPotatoApp {
             mcpManager.startAll();
             
             // Create agent-based NLP service with tool capabilities
-            AgentNLPService agentService = new AgentNLPService(openaiApiKey, "gpt-3.5-turbo", mcpManager);
+            AgentNLPService agentService = new AgentNLPService(llmClient, "gpt-3.5-turbo", mcpManager);
             logger.info("AgentNLPService initialized with {} MCP servers", mcpManager.getAllServers().size());
             logger.info(mcpManager.getStatus());
             
             // Create and start socket server
-            server = new QueryServer(port, threadPoolSize, nlpService, dbService);
+            server = new QueryServer(serverConfig, nlpService, dbService);
             server.start();
             
             // Create and start HTTP/web server with AGENT mode
-            webServer = new WebServer(8080, agentService, dbService);
+            webServer = new WebServer(serverConfig, agentService, dbService);
             webServer.start();
             
             logger.info("Server started successfully!");
-            logger.info("Open http://localhost:8080 in your browser");
+            logger.info("Open http://localhost:{} in your browser", serverConfig.webPort);
             logger.info("Or connect to socket server on port {}", port);
             logger.info("Press Ctrl+C to shutdown the servers");
             
-            // Add shutdown hook for graceful shutdown
+            // Add shutdown hook for graceful shutdown: drain both front ends in parallel,
+            // then shut down the MCP servers their in-flight requests may still be using
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 logger.info("Shutting down...");
-                if (mcpManager != null) mcpManager.shutdownAll();
-                if (server != null) server.stop();
+                Thread socketDrain = Thread.ofVirtual().start(() -> {
+                    if (server != null) server.stop();
+                });
                 if (webServer != null) webServer.stop();
+                try {
+                    socketDrain.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (mcpManager != null) mcpManager.shutdownAll();
+                llmClient.close();
+                if (completionStore != null) {
+                    PersistentCompletionStore.StoreStats storeStats = completionStore.getStats();
+                    logger.info("Completion store: {} hits, {} entries in {} bytes on disk",
+                            storeStats.hits, storeStats.entries, storeStats.diskBytes);
+                    completionStore.close();
+                }
+                logger.info("Duplicate queries coalesced: {} socket, {} web",
+                        nlpService.getCoalescingStats().coalesced, agentService.getCoalescingStats().coalesced);
+                CompletionCache.CacheStats cacheStats = nlpService.getCacheStats();
+                if (cacheStats != null) {
+                    logger.info("Completion cache: {} hits, {} misses, {} evictions", cacheStats.hits, cacheStats.misses, cacheStats.evictions);
+                }
+                NearDuplicateCache.NearStats nearStats = nlpService.getNearCacheStats();
+                if (nearStats != null) {
+                    logger.info("Near-duplicate cache: {} hits in {} lookups, {} false in {} audits",
+                            nearStats.nearHits, nearStats.lookups, nearStats.falseHits, nearStats.audits);
+                }
+                logger.info("Shutdown complete");
             }));
             
             // Keep the main thread alive
@@ -0,0 +1,180 @@
+package com.example.nlp;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Request coalescing for identical concurrent queries
+ * The first caller for a key runs the computation; callers arriving with the same key
+ * while it is in flight wait for that result instead of starting their own LLM call.
+ * Nothing is cached: once the computation finishes the key is released, so the next call
+ * runs again
+ *
+ * executeAsync coalesces computations that return a future. Each caller gets its own future,
+ * and cancelling it detaches only that caller: the shared computation is cancelled once
+ * every caller waiting on it has cancelled. Blocking and asynchronous calls do not join each
+ * other's runs
+ */
+public class SingleFlight<V> {
+    private final ConcurrentMap<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AsyncFlight> asyncInFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Run work for key, or join the run already in flight for it
+     */
+    public V execute(String key, Supplier<V> work) {
+        calls.increment();
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.increment();
+            return running.join();
+        }
+
+        executions.increment();
+        try {
+            V value = work.get();
+            mine.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Start work for key, or join the asynchronous run already in flight for it
+     */
+    public CompletableFuture<V> executeAsync(String key, Supplier<CompletableFuture<V>> work) {
+        calls.increment();
+        while (true) {
+            AsyncFlight mine = new AsyncFlight(key);
+            AsyncFlight running = asyncInFlight.putIfAbsent(key, mine);
+            if (running == null) {
+                executions.increment();
+                CompletableFuture<V> waiter = mine.join();
+                mine.start(work);
+                return waiter;
+            }
+            CompletableFuture<V> waiter = running.join();
+            if (waiter != null) {
+                coalesced.increment();
+                return waiter;
+            }
+            // Every caller of that run cancelled; it is going away, so start a fresh one
+            asyncInFlight.remove(key, running);
+        }
+    }
+
+    /**
+     * Coalescing key for a query: case and surrounding or repeated whitespace are ignored
+     */
+    public static String normalize(String query) {
+        return query == null ? "" : query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    public Stats getStats() {
+        return new Stats(calls.sum(), executions.sum(), coalesced.sum(), inFlight.size() + asyncInFlight.size());
+    }
+
+    /**
+     * One asynchronous run and the callers still waiting on it
+     */
+    private class AsyncFlight {
+        private final String key;
+        private final CompletableFuture<V> shared = new CompletableFuture<>();
+        // Guarded by this
+        private CompletableFuture<V> source;
+        private int waiters;
+        private boolean abandoned;
+
+        AsyncFlight(String key) {
+            this.key = key;
+            shared.whenComplete((value, error) -> asyncInFlight.remove(key, this));
+        }
+
+        void start(Supplier<CompletableFuture<V>> work) {
+            CompletableFuture<V> started;
+            try {
+                started = work.get();
+            } catch (RuntimeException | Error e) {
+                shared.completeExceptionally(e);
+                return;
+            }
+            synchronized (this) {
+                source = started;
+            }
+            started.whenComplete((value, error) -> {
+                if (error != null) {
+                    shared.completeExceptionally(error);
+                } else {
+                    shared.complete(value);
+                }
+            });
+        }
+
+        /**
+         * A future for one more caller, or null when the run has been abandoned
+         */
+        synchronized CompletableFuture<V> join() {
+            if (abandoned) {
+                return null;
+            }
+            waiters++;
+            CompletableFuture<V> waiter = new CompletableFuture<>();
+            shared.whenComplete((value, error) -> {
+                if (error != null) {
+                    waiter.completeExceptionally(error);
+                } else {
+                    waiter.complete(value);
+                }
+            });
+            waiter.whenComplete((value, error) -> {
+                if (waiter.isCancelled()) {
+                    leave();
+                }
+            });
+            return waiter;
+        }
+
+        private void leave() {
+            CompletableFuture<V> cancel = null;
+            synchronized (this) {
+                if (--waiters == 0 && !shared.isDone()) {
+                    abandoned = true;
+                    cancel = source;
+                }
+            }
+            if (cancel != null) {
+                asyncInFlight.remove(key, this);
+                cancel.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Stats: calls received, computations actually run, and calls saved by joining one
+     */
+    public static class Stats {
+        public final long calls;
+        public final long executions;
+        public final long coalesced;
+        public final int inFlight;
+
+        public Stats(long calls, long executions, long coalesced, int inFlight) {
+            this.calls = calls;
+            this.executions = executions;
+            this.coalesced = coalesced;
+            this.inFlight = inFlight;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accept-rate metrics for the socket acceptor threads
+ * Counts connections accepted by each acceptor and tracks the busiest one-second window
+ */
+class AcceptMeter {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final AtomicLongArray acceptedPerAcceptor;
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicLong currentSecondCount = new AtomicLong();
+    private final AtomicLong peakPerSecond = new AtomicLong();
+
+    AcceptMeter(int acceptors) {
+        this.acceptedPerAcceptor = new AtomicLongArray(acceptors);
+    }
+
+    /**
+     * Record one accepted connection (approximate under races, which is fine for a rate gauge)
+     */
+    void record(int acceptor) {
+        acceptedPerAcceptor.incrementAndGet(acceptor);
+
+        long second = System.nanoTime() / NANOS_PER_SECOND;
+        long current = currentSecond.get();
+        if (second != current && currentSecond.compareAndSet(current, second)) {
+            currentSecondCount.set(0);
+        }
+        long count = currentSecondCount.incrementAndGet();
+        peakPerSecond.accumulateAndGet(count, Math::max);
+    }
+
+    AcceptStats getStats(boolean reusePort) {
+        long[] perAcceptor = new long[acceptedPerAcceptor.length()];
+        long total = 0;
+        for (int i = 0; i < perAcceptor.length; i++) {
+            perAcceptor[i] = acceptedPerAcceptor.get(i);
+            total += perAcceptor[i];
+        }
+        return new AcceptStats(total, perAcceptor, peakPerSecond.get(), reusePort);
+    }
+
+    /**
+     * AcceptStats: accepted connection counters
+     */
+    public static class AcceptStats {
+        public final long acceptedTotal;
+        public final long[] acceptedPerAcceptor;
+        public final long peakAcceptsPerSecond;
+        public final boolean reusePort;
+
+        public AcceptStats(long acceptedTotal, long[] acceptedPerAcceptor, long peakAcceptsPerSecond, boolean reusePort) {
+            this.acceptedTotal = acceptedTotal;
+            this.acceptedPerAcceptor = acceptedPerAcceptor;
+            this.peakAcceptsPerSecond = peakAcceptsPerSecond;
+            this.reusePort = reusePort;
+        }
+    }
+}
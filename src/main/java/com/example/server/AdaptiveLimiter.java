@@ -0,0 +1,120 @@
+package com.example.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency-driven concurrency limit (gradient algorithm)
+ * The limit is how many queries may run at once. Each completed query compares the recent
+ * average latency with the long-term average: while they agree the limit grows by about
+ * sqrt(limit), and once queries start taking longer (the LLM backend is saturating) it
+ * shrinks in proportion, so excess load is refused at once instead of queueing behind a slow
+ * backend. The long-term average keeps following the backend, so after a lasting latency
+ * shift (300 ms to 20 s) the limit recovers to whatever that backend can sustain
+ *
+ * Failed queries release their slot without being sampled, and the limit does not grow
+ * while less than half of it is in use
+ */
+class AdaptiveLimiter {
+    // Recent latency may exceed the long-term average by this factor before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    // Weight of each new limit estimate, so one outlier cannot halve the limit
+    private static final double SMOOTHING = 0.2;
+    private static final int LONG_WINDOW = 600;
+    private static final int SHORT_WINDOW = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile double limit;
+
+    // Guarded by this
+    private long samples;
+    private double longLatency;
+    private double shortLatency;
+
+    AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Take a slot for a query
+     * @return false when the current limit is reached and the query should be shed
+     */
+    boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        accepted.increment();
+        return true;
+    }
+
+    /**
+     * Give back a slot taken with tryAcquire()
+     * @param latencyNanos how long the query ran
+     * @param success false when the query failed; its latency is then ignored
+     */
+    void release(long latencyNanos, boolean success) {
+        int inFlightBefore = inFlight.getAndDecrement();
+        if (success) {
+            update(latencyNanos, inFlightBefore);
+        }
+    }
+
+    private synchronized void update(long latencyNanos, int inFlightBefore) {
+        samples++;
+        // Exponential moving averages; plain running averages until each window fills
+        longLatency += (latencyNanos - longLatency) / Math.min(samples, LONG_WINDOW);
+        shortLatency += (latencyNanos - shortLatency) / Math.min(samples, SHORT_WINDOW);
+
+        // Latency has dropped well below the long-term average: let the average catch up
+        // faster so the limit is not held back by a past slowdown
+        if (longLatency > 2 * shortLatency) {
+            longLatency *= 0.95;
+        }
+
+        // Application-limited: a lightly used limit says nothing about the backend
+        if (inFlightBefore < limit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+        double estimate = limit * gradient + Math.sqrt(limit);
+        double smoothed = limit * (1 - SMOOTHING) + estimate * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, smoothed));
+    }
+
+    int getLimit() {
+        return (int) limit;
+    }
+
+    LimiterStats getStats() {
+        return new LimiterStats(getLimit(), inFlight.get(), accepted.sum(), rejected.sum());
+    }
+
+    /**
+     * LimiterStats: current limit, occupancy and counters
+     */
+    public static class LimiterStats {
+        public final int limit;
+        public final int inFlight;
+        public final long accepted;
+        public final long rejected;
+
+        public LimiterStats(int limit, int inFlight, long accepted, long rejected) {
+            this.limit = limit;
+            this.inFlight = inFlight;
+            this.accepted = accepted;
+            this.rejected = rejected;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for accepted connections
+ * At most maxInFlight connections are served at once and at most maxQueued more wait for a
+ * slot; anything beyond that is rejected immediately so the client can retry elsewhere or later,
+ * instead of timing out in an unbounded executor queue
+ */
+class AdmissionController {
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Semaphore inFlightPermits;
+    private final AtomicInteger admittedNow = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder admittedTotal = new LongAdder();
+    private final LongAdder rejectedTotal = new LongAdder();
+
+    AdmissionController(int maxInFlight, int maxQueued) {
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.inFlightPermits = new Semaphore(maxInFlight, true);
+    }
+
+    /**
+     * Reserve a place for a new connection, either in flight or in the queue
+     * @return false when both are full and the connection must be turned away
+     */
+    boolean tryAdmit() {
+        int capacity = maxInFlight + maxQueued;
+        int current;
+        do {
+            current = admittedNow.get();
+            if (current >= capacity) {
+                rejectedTotal.increment();
+                return false;
+            }
+        } while (!admittedNow.compareAndSet(current, current + 1));
+        admittedTotal.increment();
+        return true;
+    }
+
+    /**
+     * Wait (queued) until the admitted connection may be served
+     */
+    void awaitTurn() throws InterruptedException {
+        inFlightPermits.acquire();
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Release an admitted connection's place
+     * @param started whether awaitTurn() completed for it
+     */
+    void release(boolean started) {
+        if (started) {
+            inFlight.decrementAndGet();
+            inFlightPermits.release();
+        }
+        admittedNow.decrementAndGet();
+    }
+
+    AdmissionStats getStats() {
+        int inFlightNow = inFlight.get();
+        return new AdmissionStats(
+            admittedTotal.sum(),
+            rejectedTotal.sum(),
+            inFlightNow,
+            Math.max(0, admittedNow.get() - inFlightNow)
+        );
+    }
+
+    /**
+     * AdmissionStats: admission counters and current occupancy
+     */
+    public static class AdmissionStats {
+        public final long admitted;
+        public final long rejected;
+        public final int inFlight;
+        public final int queued;
+
+        public AdmissionStats(long admitted, long rejected, int inFlight, int queued) {
+            this.admitted = admitted;
+            this.rejected = rejected;
+            this.inFlight = inFlight;
+            this.queued = queued;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.server;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing for the socket protocol
+ * A client selects binary mode by sending MAGIC as the very first byte of the connection
+ * (0xB7 can never start a UTF-8 text line). Every frame after that is a fixed 16 byte
+ * big-endian header followed by a UTF-8 payload:
+ *
+ *   type (1) | reserved (3) | request id (4) | processing time ms (4) | payload length (4)
+ *
+ * Queries may contain newlines, and the request id is echoed on the reply frame.
+ * A STREAM_QUERY is answered by zero or more CHUNK frames carrying the completion as it is
+ * generated, then a STREAM_END frame with the processing time and an empty payload.
+ * Payloads are read into and encoded from per-connection buffers that are reused across frames
+ */
+class BinaryFrameCodec {
+    static final int MAGIC = 0xB7;
+    static final int HEADER_SIZE = 16;
+
+    // Client -> server frame types
+    static final byte QUERY = 0x01;
+    static final byte STATS = 0x02;
+    static final byte EXIT = 0x03;
+    static final byte STREAM_QUERY = 0x04;
+
+    // Server -> client frame types
+    static final byte RESPONSE = 0x11;
+    static final byte STATS_RESPONSE = 0x12;
+    static final byte GOODBYE = 0x13;
+    static final byte CHUNK = 0x14;
+    static final byte STREAM_END = 0x15;
+    static final byte ERROR = 0x1F;
+
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final int maxPayloadSize;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private byte[] readBuffer = new byte[1024];
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+
+    // Header fields of the last frame read
+    private byte type;
+    private int requestId;
+    private int payloadLength;
+
+    BinaryFrameCodec(InputStream in, OutputStream out, int maxPayloadSize) {
+        this.in = new DataInputStream(in);
+        this.out = out;
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    /**
+     * Read the next frame into the reusable buffer
+     * @return false when the client closed the connection between frames
+     */
+    boolean readFrame() throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return false;
+        }
+        type = (byte) first;
+        requestId = 0;
+        try {
+            in.skipNBytes(3);
+            requestId = in.readInt();
+            in.readInt(); // processing time is only meaningful on replies
+            payloadLength = in.readInt();
+        } catch (EOFException e) {
+            throw new ProtocolException("Connection closed inside a frame");
+        }
+
+        if (payloadLength < 0 || payloadLength > maxPayloadSize) {
+            throw new ProtocolException("Frame payload of " + payloadLength + " bytes exceeds limit of " + maxPayloadSize);
+        }
+        if (readBuffer.length < payloadLength) {
+            readBuffer = new byte[Math.max(payloadLength, readBuffer.length * 2)];
+        }
+        try {
+            in.readFully(readBuffer, 0, payloadLength);
+        } catch (EOFException e) {
+            throw new ProtocolException("Connection closed inside a frame");
+        }
+        return true;
+    }
+
+    byte type() {
+        return type;
+    }
+
+    int requestId() {
+        return requestId;
+    }
+
+    /**
+     * Payload of the last frame read, decoded as UTF-8
+     */
+    String payloadText() {
+        return new String(readBuffer, 0, payloadLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode and send one frame using the reusable write buffer
+     */
+    void writeFrame(byte frameType, int frameRequestId, long processingTimeMs, String payload) throws IOException {
+        int maxBytes = HEADER_SIZE + (int) (payload.length() * encoder.maxBytesPerChar());
+        if (writeBuffer.capacity() < maxBytes) {
+            writeBuffer = ByteBuffer.allocate(Math.max(maxBytes, writeBuffer.capacity() * 2));
+        }
+        writeBuffer.clear();
+        writeBuffer.position(HEADER_SIZE);
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(payload), writeBuffer, true);
+        encoder.flush(writeBuffer);
+        putHeader(writeBuffer, frameType, frameRequestId, processingTimeMs, writeBuffer.position() - HEADER_SIZE);
+
+        out.write(writeBuffer.array(), 0, writeBuffer.position());
+        out.flush();
+    }
+
+    /**
+     * Encode a standalone frame (used by the NIO engine, which writes ByteBuffers directly)
+     */
+    static ByteBuffer encodeFrame(byte frameType, int frameRequestId, long processingTimeMs, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+        putHeader(frame, frameType, frameRequestId, processingTimeMs, bytes.length);
+        frame.position(HEADER_SIZE);
+        frame.put(bytes);
+        return frame.flip();
+    }
+
+    private static void putHeader(ByteBuffer buffer, byte frameType, int frameRequestId,
+                                  long processingTimeMs, int length) {
+        buffer.put(0, frameType);
+        buffer.put(1, (byte) 0);
+        buffer.put(2, (byte) 0);
+        buffer.put(3, (byte) 0);
+        buffer.putInt(4, frameRequestId);
+        buffer.putInt(8, (int) Math.min(processingTimeMs, Integer.MAX_VALUE));
+        buffer.putInt(12, length);
+    }
+}
@@ -6,30 +6,58 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handles individual client connections
  * Receives queries, processes them via NLP service, stores results in database
+ * In pipelined mode (PIPELINE command) queries run concurrently on virtual threads and
+ * tagged responses are written as they complete. A connection whose first byte is
+ * BinaryFrameCodec.MAGIC speaks length-prefixed binary frames instead of lines.
+ * STREAM requests write each completion chunk to the client as soon as it arrives
+ *
+ * Reads time out after CLIENT_IDLE_TIMEOUT_SECONDS without data, and the connection is
+ * closed after CLIENT_MAX_REQUESTS requests when that limit is set
  */
 public class ClientHandler implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(ClientHandler.class);
     
     private final Socket socket;
-    private final NLPService nlpService;
-    private final DatabaseService dbService;
+    private final QueryProtocol protocol;
+    private final ServerConfig config;
+    private final AtomicInteger requestsInProgress = new AtomicInteger();
+    private volatile long lastActivityNanos = System.nanoTime();
+    private volatile boolean closedByServer;
+    private int requestCount;
+    private ExecutorService pipelineExecutor;
+    private Semaphore pipelinePermits;
     
     public ClientHandler(Socket socket, NLPService nlpService, DatabaseService dbService) {
+        this(socket, nlpService, dbService, ServerConfig.defaults());
+    }
+    
+    public ClientHandler(Socket socket, NLPService nlpService, DatabaseService dbService, ServerConfig config) {
         this.socket = socket;
-        this.nlpService = nlpService;
-        this.dbService = dbService;
+        this.protocol = new QueryProtocol(nlpService, dbService);
+        this.config = config;
     }
     
     @Override
     public void run() {
         try {
             handleClient();
+        } catch (SocketException e) {
+            logSocketError("Error handling client", e);
         } catch (Exception e) {
             logger.error("Error handling client: {}", e.getMessage(), e);
         } finally {
@@ -41,68 +69,354 @@ public class ClientHandler implements Runnable {
      * Handle client communication
      */
     private void handleClient() throws IOException {
+        if (config.clientIdleTimeoutSeconds > 0) {
+            socket.setSoTimeout(config.clientIdleTimeoutSeconds * 1000);
+        }
+        BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+        
+        try {
+            // Protocol negotiation: peek at the first byte
+            input.mark(1);
+            int first = input.read();
+            if (first == -1) {
+                return;
+            }
+            if (first == BinaryFrameCodec.MAGIC) {
+                handleBinaryClient(input);
+                return;
+            }
+            input.reset();
+        } catch (SocketTimeoutException e) {
+            logger.info("Closing connection after {} s without data", config.clientIdleTimeoutSeconds);
+            return;
+        }
+        
         try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                new InputStreamReader(input, StandardCharsets.UTF_8));
              PrintWriter writer = new PrintWriter(
                 new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
             
-            String query;
-            while ((query = reader.readLine()) != null && !query.isEmpty()) {
-                logger.debug("Received query: {}", query);
-                
-                // Check for special commands
-                if (query.equalsIgnoreCase("STATS")) {
-                    handleStatsRequest(writer);
-                } else if (query.equalsIgnoreCase("EXIT")) {
-                    writer.println("Goodbye!");
-                    break;
-                } else {
-                    handleQueryRequest(query, writer);
-                }
+            try {
+                readRequests(reader, writer);
+            } catch (SocketTimeoutException e) {
+                logger.info("Closing connection after {} s without data", config.clientIdleTimeoutSeconds);
+            } finally {
+                // Let queries still running finish before the writer is closed
+                awaitPipelinedRequests();
             }
             
+        } catch (SocketException e) {
+            logSocketError("Error in client communication", e);
         } catch (IOException e) {
             logger.error("Error in client communication", e);
         }
     }
     
+    /**
+     * A read interrupted because the reaper or a drain closed the socket is expected
+     */
+    private void logSocketError(String message, SocketException e) {
+        if (closedByServer) {
+            logger.debug("Connection closed by server: {}", e.getMessage());
+        } else {
+            logger.error(message, e);
+        }
+    }
+    
+    /**
+     * Read and dispatch request lines until EXIT, an empty line, end of input or the request limit
+     */
+    private void readRequests(BufferedReader reader, PrintWriter writer) throws IOException {
+        String query;
+        while ((query = reader.readLine()) != null && !query.isEmpty()) {
+            logger.debug("Received query: {}", query);
+            touch();
+            
+            // Check for special commands
+            if (QueryProtocol.isExit(query)) {
+                awaitPipelinedRequests();
+                writer.print(QueryProtocol.EXIT_REPLY);
+                writer.flush();
+                return;
+            } else if (QueryProtocol.isPipeline(query) && pipelineExecutor == null) {
+                enablePipelining(writer);
+                continue;
+            }
+            
+            requestCount++;
+            int batchSize = pipelineExecutor == null ? QueryProtocol.parseBatchSize(query, config.batchMaxSize) : -1;
+            String streamQuery = pipelineExecutor == null ? QueryProtocol.parseStreamQuery(query) : null;
+            if (pipelineExecutor != null) {
+                submitPipelinedRequest(query, writer);
+            } else if (batchSize >= 0) {
+                handleBatchRequest(batchSize, reader, writer);
+            } else if (streamQuery != null) {
+                handleStreamRequest(streamQuery, writer);
+            } else if (QueryProtocol.isStats(query)) {
+                handleStatsRequest(writer);
+            } else {
+                handleQueryRequest(query, writer);
+            }
+            
+            if (requestLimitReached()) {
+                awaitPipelinedRequests();
+                writeBlock(writer, "CLOSING:Maximum of " + config.clientMaxRequests + " requests per connection reached\n");
+                return;
+            }
+        }
+    }
+    
+    private boolean requestLimitReached() {
+        return config.clientMaxRequests > 0 && requestCount >= config.clientMaxRequests;
+    }
+    
+    /**
+     * Record that the client completed a request or got a response
+     */
+    private void touch() {
+        lastActivityNanos = System.nanoTime();
+    }
+    
+    /**
+     * How long this connection has been idle, or 0 while a request is being processed
+     */
+    long idleNanos(long nowNanos) {
+        return requestsInProgress.get() > 0 ? 0 : nowNanos - lastActivityNanos;
+    }
+    
+    /**
+     * Read the next binary frame; an oversized or truncated frame is answered with an ERROR
+     * frame (as the NIO engine does) and ends the connection
+     */
+    private boolean readFrame(BinaryFrameCodec codec) throws IOException {
+        try {
+            return codec.readFrame();
+        } catch (ProtocolException e) {
+            logger.warn("Closing binary connection: {}", e.getMessage());
+            try {
+                codec.writeFrame(BinaryFrameCodec.ERROR, codec.requestId(), 0, e.getMessage());
+            } catch (IOException writeError) {
+                logger.debug("Could not send ERROR frame: {}", writeError.getMessage());
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Binary framing: one frame in, one frame out, request id echoed
+     */
+    private void handleBinaryClient(InputStream input) throws IOException {
+        BinaryFrameCodec codec = new BinaryFrameCodec(
+            input, new BufferedOutputStream(socket.getOutputStream()), config.binaryMaxFrameSize);
+        logger.debug("Client negotiated binary framing");
+        
+        while (readFrame(codec)) {
+            touch();
+            int requestId = codec.requestId();
+            switch (codec.type()) {
+                case BinaryFrameCodec.QUERY -> {
+                    requestsInProgress.incrementAndGet();
+                    try {
+                        QueryProtocol.QueryResult result = protocol.execute(codec.payloadText());
+                        codec.writeFrame(BinaryFrameCodec.RESPONSE, requestId, result.processingTimeMs, result.response);
+                    } finally {
+                        requestsInProgress.decrementAndGet();
+                        touch();
+                    }
+                }
+                case BinaryFrameCodec.STREAM_QUERY -> {
+                    requestsInProgress.incrementAndGet();
+                    try {
+                        QueryProtocol.QueryResult result = protocol.executeStreaming(codec.payloadText(), chunk -> {
+                            try {
+                                codec.writeFrame(BinaryFrameCodec.CHUNK, requestId, 0, chunk);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                        codec.writeFrame(BinaryFrameCodec.STREAM_END, requestId, result.processingTimeMs, "");
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    } finally {
+                        requestsInProgress.decrementAndGet();
+                        touch();
+                    }
+                }
+                case BinaryFrameCodec.STATS ->
+                    codec.writeFrame(BinaryFrameCodec.STATS_RESPONSE, requestId, 0, protocol.statsSummary());
+                case BinaryFrameCodec.EXIT -> {
+                    codec.writeFrame(BinaryFrameCodec.GOODBYE, requestId, 0, "Goodbye!");
+                    return;
+                }
+                default ->
+                    codec.writeFrame(BinaryFrameCodec.ERROR, requestId, 0, "Unknown frame type: " + codec.type());
+            }
+            
+            requestCount++;
+            if (requestLimitReached()) {
+                codec.writeFrame(BinaryFrameCodec.GOODBYE, requestId, 0,
+                    "Maximum of " + config.clientMaxRequests + " requests per connection reached");
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Switch this connection to pipelined mode
+     */
+    private void enablePipelining(PrintWriter writer) {
+        pipelineExecutor = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("query-pipeline-", 0).factory()
+        );
+        pipelinePermits = new Semaphore(config.pipelineMaxInFlight);
+        writeBlock(writer, QueryProtocol.PIPELINE_REPLY);
+        logger.debug("Pipelining enabled (max {} in flight)", config.pipelineMaxInFlight);
+    }
+    
+    /**
+     * Run a pipelined request concurrently; blocks reading once PIPELINE_MAX_IN_FLIGHT are running
+     */
+    private void submitPipelinedRequest(String line, PrintWriter writer) {
+        try {
+            pipelinePermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        requestsInProgress.incrementAndGet();
+        pipelineExecutor.execute(() -> {
+            try {
+                writeBlock(writer, protocol.processPipelined(line));
+            } catch (RuntimeException e) {
+                logger.error("Error processing pipelined request", e);
+            } finally {
+                requestsInProgress.decrementAndGet();
+                touch();
+                pipelinePermits.release();
+            }
+        });
+    }
+    
+    /**
+     * Wait for all pipelined requests to complete (no-op when not pipelining)
+     */
+    private void awaitPipelinedRequests() {
+        if (pipelineExecutor != null) {
+            pipelineExecutor.close();
+        }
+    }
+    
+    /**
+     * Write a whole response block; blocks from concurrent requests never interleave
+     */
+    private void writeBlock(PrintWriter writer, String block) {
+        synchronized (writer) {
+            writer.print(block);
+            writer.flush();
+        }
+    }
+    
     /**
      * Process a query request
      */
     private void handleQueryRequest(String query, PrintWriter writer) {
-        long startTime = System.currentTimeMillis();
-        
-        // Process NLP query
-        String response = nlpService.processQuery(query);
-        
-        long processingTime = System.currentTimeMillis() - startTime;
-        
-        // Store in database
-        dbService.saveQueryResult(query, response, processingTime);
+        requestsInProgress.incrementAndGet();
+        try {
+            writeBlock(writer, protocol.processQuery(query));
+        } finally {
+            requestsInProgress.decrementAndGet();
+            touch();
+        }
+    }
+    
+    /**
+     * Process a STREAM request, flushing each CHUNK line as the completion is generated
+     */
+    private void handleStreamRequest(String query, PrintWriter writer) {
+        requestsInProgress.incrementAndGet();
+        try {
+            writeBlock(writer, protocol.processStream(query, chunk -> writeBlock(writer, chunk)));
+        } finally {
+            requestsInProgress.decrementAndGet();
+            touch();
+        }
+    }
+    
+    /**
+     * Read the n query lines of a BATCH and answer them in order
+     */
+    private void handleBatchRequest(int batchSize, BufferedReader reader, PrintWriter writer) throws IOException {
+        if (batchSize == 0) {
+            writeBlock(writer, QueryProtocol.batchError(config.batchMaxSize));
+            return;
+        }
         
-        // Send response to client
-        writer.println("RESPONSE:" + response);
-        writer.println("TIME:" + processingTime + "ms");
-        writer.println("---");
+        List<String> queries = new ArrayList<>(batchSize);
+        while (queries.size() < batchSize) {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new EOFException("Connection closed after " + queries.size() + " of " + batchSize + " batch queries");
+            }
+            queries.add(line);
+            touch();
+        }
         
-        logger.info("Query processed in {} ms", processingTime);
+        requestsInProgress.incrementAndGet();
+        try {
+            writeBlock(writer, protocol.processBatch(queries, config.batchParallelism));
+        } finally {
+            requestsInProgress.decrementAndGet();
+            touch();
+        }
     }
     
     /**
      * Handle statistics request
      */
     private void handleStatsRequest(PrintWriter writer) {
-        DatabaseService.DatabaseStats stats = dbService.getStats();
-        writer.println("STATS:");
-        writer.println("Total queries: " + stats.totalQueries);
-        writer.println("Average processing time: " + String.format("%.2f", stats.averageProcessingTimeMs) + "ms");
-        writer.println("---");
+        writeBlock(writer, protocol.stats());
+    }
+    
+    /**
+     * Close the connection without serving it
+     */
+    void close() {
+        closeConnection();
+    }
+    
+    /**
+     * Turn away a connection that was never served
+     */
+    void rejectBusy(int retryAfterSeconds) {
+        try {
+            QueryServer.writeBusy(socket.getOutputStream(), retryAfterSeconds);
+        } catch (IOException e) {
+            logger.debug("Error rejecting connection: {}", e.getMessage());
+        } finally {
+            closeConnection();
+        }
+    }
+    
+    /**
+     * Begin a graceful close: the handler sees end of input after the requests it has
+     * already read, while its responses can still be written
+     */
+    void drain() {
+        try {
+            if (!socket.isClosed() && !socket.isInputShutdown()) {
+                socket.shutdownInput();
+            }
+        } catch (IOException e) {
+            logger.debug("Error shutting down input: {}", e.getMessage());
+            closeConnection();
+        }
     }
     
     /**
      * Close the client connection
      */
     private void closeConnection() {
+        closedByServer = true;
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
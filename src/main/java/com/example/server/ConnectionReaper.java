@@ -0,0 +1,67 @@
+package com.example.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background reaper for stale client connections
+ * SO_TIMEOUT only fires when no bytes arrive at all, so a client trickling one byte at a
+ * time (or an abandoned half-open socket) could still pin a handler thread. The reaper
+ * closes any connection that has not completed a request within the idle timeout and has
+ * nothing in progress; closing the socket unblocks the handler's pending read
+ */
+class ConnectionReaper {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionReaper.class);
+
+    private final Set<ClientHandler> handlers;
+    private final long idleTimeoutNanos;
+    private final LongAdder reaped = new LongAdder();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param handlers live set of connections being served, maintained by the server
+     */
+    ConnectionReaper(Set<ClientHandler> handlers, long idleTimeoutMillis) {
+        this.handlers = handlers;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    void start(long intervalMillis) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("query-reaper").daemon(true).factory()
+        );
+        scheduler.scheduleWithFixedDelay(this::reap, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close every registered connection that has been idle past the timeout
+     */
+    void reap() {
+        long now = System.nanoTime();
+        for (ClientHandler handler : handlers) {
+            if (handler.idleNanos(now) > idleTimeoutNanos) {
+                logger.info("Closing idle connection ({} ms without a request)",
+                        TimeUnit.NANOSECONDS.toMillis(handler.idleNanos(now)));
+                handlers.remove(handler);
+                handler.close();
+                reaped.increment();
+            }
+        }
+    }
+
+    long getReapedCount() {
+        return reaped.sum();
+    }
+
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
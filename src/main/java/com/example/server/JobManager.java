@@ -0,0 +1,195 @@
+package com.example.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous query jobs for the web API
+ * A submitted query gets an id at once and runs on a bounded pool of JOB_WORKERS threads
+ * with at most JOB_MAX_QUEUED jobs waiting; when both are full, submission is refused so
+ * the caller can answer 503. Finished jobs stay available for JOB_RESULT_TTL_SECONDS and
+ * are then removed by a background sweep
+ */
+class JobManager {
+    private static final Logger logger = LoggerFactory.getLogger(JobManager.class);
+
+    /**
+     * Runs one job's query
+     */
+    @FunctionalInterface
+    interface JobTask {
+        QueryProtocol.QueryResult run(String query) throws Exception;
+    }
+
+    enum Status { QUEUED, RUNNING, SUCCEEDED, FAILED }
+
+    private final JobTask task;
+    private final long resultTtlNanos;
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService sweeper;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    JobManager(JobTask task, int workerCount, int maxQueued, long resultTtlMillis) {
+        this.task = task;
+        this.resultTtlNanos = TimeUnit.MILLISECONDS.toNanos(resultTtlMillis);
+        this.workers = new ThreadPoolExecutor(
+            workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, maxQueued)),
+            Thread.ofPlatform().name("web-job-", 0).factory()
+        );
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("web-job-sweeper").daemon(true).factory()
+        );
+        long sweepMillis = Math.max(1000, resultTtlMillis / 4);
+        sweeper.scheduleWithFixedDelay(this::expire, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue a query
+     * @return the new job, or null when the workers and queue are full
+     */
+    Job submit(String query) {
+        Job job = new Job(UUID.randomUUID().toString(), query);
+        jobs.put(job.id, job);
+        try {
+            workers.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            rejected.increment();
+            return null;
+        }
+        submitted.increment();
+        return job;
+    }
+
+    private void run(Job job) {
+        job.status = Status.RUNNING;
+        try {
+            QueryProtocol.QueryResult result = task.run(job.query);
+            job.response = result.response;
+            job.processingTimeMs = result.processingTimeMs;
+            job.finish(Status.SUCCEEDED);
+            succeeded.increment();
+        } catch (Exception e) {
+            logger.error("Job {} failed", job.id, e);
+            job.error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            job.finish(Status.FAILED);
+            failed.increment();
+        }
+    }
+
+    /**
+     * Look up a job
+     * @return the job, or null when unknown or expired
+     */
+    Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Drop finished jobs older than the result TTL
+     */
+    void expire() {
+        long now = System.nanoTime();
+        jobs.values().removeIf(job -> {
+            boolean stale = job.isDone() && now - job.finishedNanos > resultTtlNanos;
+            if (stale) {
+                expired.increment();
+            }
+            return stale;
+        });
+    }
+
+    /**
+     * Stop accepting jobs and give running ones up to timeoutNanos to finish
+     */
+    void stop(long timeoutNanos) {
+        sweeper.shutdownNow();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                logger.warn("Job drain budget exceeded with {} jobs unfinished", workers.getActiveCount() + workers.getQueue().size());
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    JobStats getStats() {
+        return new JobStats(
+            submitted.sum(), rejected.sum(), succeeded.sum(), failed.sum(), expired.sum(),
+            workers.getActiveCount(), workers.getQueue().size(), jobs.size()
+        );
+    }
+
+    /**
+     * Job: one submitted query and, once finished, its outcome
+     */
+    static class Job {
+        final String id;
+        final String query;
+        volatile Status status = Status.QUEUED;
+        volatile String response;
+        volatile long processingTimeMs;
+        volatile String error;
+        private volatile long finishedNanos;
+
+        Job(String id, String query) {
+            this.id = id;
+            this.query = query;
+        }
+
+        private void finish(Status outcome) {
+            finishedNanos = System.nanoTime();
+            status = outcome;
+        }
+
+        boolean isDone() {
+            return status == Status.SUCCEEDED || status == Status.FAILED;
+        }
+    }
+
+    /**
+     * JobStats: job counters and current occupancy
+     */
+    public static class JobStats {
+        public final long submitted;
+        public final long rejected;
+        public final long succeeded;
+        public final long failed;
+        public final long expired;
+        public final int running;
+        public final int queued;
+        public final int stored;
+
+        public JobStats(long submitted, long rejected, long succeeded, long failed, long expired,
+                        int running, int queued, int stored) {
+            this.submitted = submitted;
+            this.rejected = rejected;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.expired = expired;
+            this.running = running;
+            this.queued = queued;
+            this.stored = stored;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.server;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming JSON for HTTP request and response bodies
+ * Requests are parsed token by token straight from the exchange input stream, and replies
+ * are encoded as UTF-8 straight into the response body (through ResponseCompressor), so a
+ * body is never copied into an intermediate String
+ */
+final class JsonCodec {
+    static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+    /**
+     * Writes a reply document
+     */
+    @FunctionalInterface
+    interface BodyWriter {
+        void write(JsonWriter json) throws IOException;
+    }
+
+    private JsonCodec() {
+    }
+
+    /**
+     * Read one string field of a JSON object body, skipping every other member
+     * @return the value, or null when the field is absent or not a string
+     * @throws IllegalArgumentException when the body is not a well-formed JSON object
+     */
+    static String readStringField(InputStream body, String field) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        try {
+            String value = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(field) && reader.peek() == JsonToken.STRING) {
+                    value = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return value;
+        } catch (MalformedJsonException | EOFException | IllegalStateException e) {
+            throw new IllegalArgumentException("Malformed JSON body: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read one array-of-strings field of a JSON object body, skipping every other member
+     * @return the strings, or null when the field is absent
+     * @throws IllegalArgumentException when the body is malformed, the field is not an array
+     *         or more than maxSize elements are sent
+     */
+    static List<String> readStringArrayField(InputStream body, String field, int maxSize) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        try {
+            List<String> values = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals(field)) {
+                    reader.skipValue();
+                    continue;
+                }
+                values = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (values.size() == maxSize) {
+                        throw new IllegalArgumentException("\"" + field + "\" holds more than " + maxSize + " elements");
+                    }
+                    if (reader.peek() != JsonToken.STRING) {
+                        throw new IllegalArgumentException("\"" + field + "\" must contain only strings");
+                    }
+                    values.add(reader.nextString());
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            return values;
+        } catch (MalformedJsonException | EOFException | IllegalStateException e) {
+            throw new IllegalArgumentException("Malformed JSON body: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send a JSON reply, encoding it directly into the response body
+     */
+    static void send(HttpExchange exchange, int status, BodyWriter body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        // Chunked (and compressed when negotiated) unless the reply turns out smaller than the threshold
+        try (JsonWriter json = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(ResponseCompressor.open(exchange, status, false), StandardCharsets.UTF_8)))) {
+            body.write(json);
+        }
+    }
+
+    /**
+     * Send {"error": message}
+     */
+    static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, json -> json.beginObject().name("error").value(message).endObject());
+    }
+}
@@ -0,0 +1,608 @@
+package com.example.server;
+
+import com.example.db.DatabaseService;
+import com.example.nlp.NLPService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking engine for the newline socket protocol (queries, STATS, STREAM, EXIT)
+ * A single selector thread accepts connections and frames request lines out of a direct
+ * ByteBuffer per connection; complete requests are handed to the worker executor, so an
+ * idle connection costs one buffer instead of one thread stack
+ *
+ * Requests on a connection are answered in order: while one is with a worker the
+ * connection is not read, which also bounds per-connection memory. After PIPELINE up to
+ * PIPELINE_MAX_IN_FLIGHT requests are with workers at once and tagged replies go out as they complete
+ *
+ * Queries use the asynchronous NLP API, so no worker waits out the LLM latency: workers
+ * only store results and run STATS, BATCH and STREAM. Closing a connection aborts the
+ * LLM requests still outstanding for it
+ *
+ * Binary framing is only served by the blocking engine; a binary client gets an ERROR frame
+ *
+ * The selector loop also sweeps for connections idle past CLIENT_IDLE_TIMEOUT_SECONDS and
+ * closes connections after CLIENT_MAX_REQUESTS requests when that limit is set
+ */
+public class NioQueryServer {
+    private static final Logger logger = LoggerFactory.getLogger(NioQueryServer.class);
+    private static final byte NEWLINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+    // Queued in place of an overlong line; no framed line can contain a newline
+    private static final String LINE_TOO_LONG = "\nline-too-long";
+
+    private final ServerConfig config;
+    private final QueryProtocol protocol;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private ExecutorService workers;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    private Thread selectorThread;
+    private long nextIdleSweepNanos;
+    private volatile boolean running = false;
+
+    public NioQueryServer(ServerConfig config, NLPService nlpService, DatabaseService dbService) {
+        this.config = config;
+        this.protocol = new QueryProtocol(nlpService, dbService);
+    }
+
+    /**
+     * Bind the listening channel and start the selector thread
+     */
+    public void start() throws IOException {
+        workers = QueryServer.newExecutor(config, "query-nio-worker-");
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.port));
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        selectorThread = new Thread(this::eventLoop, "query-nio-selector");
+        selectorThread.start();
+
+        logger.info("NIO Query Server started on port {} ({} workers, {} byte buffers, max connections {})",
+                getPort(), config.executorMode, config.nioBufferSize, config.maxConnections);
+    }
+
+    /**
+     * Selector loop: runs queued tasks from workers, then dispatches ready keys
+     */
+    private void eventLoop() {
+        long sweepIntervalMillis = TimeUnit.SECONDS.toMillis(config.reaperIntervalSeconds);
+        nextIdleSweepNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sweepIntervalMillis);
+        while (running) {
+            try {
+                if (config.clientIdleTimeoutSeconds > 0) {
+                    selector.select(sweepIntervalMillis);
+                    closeIdleConnections();
+                } else {
+                    selector.select();
+                }
+                runSelectorTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnections();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            logger.debug("Closing connection after I/O error: {}", e.getMessage());
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error in NIO selector loop", e);
+                }
+            }
+        }
+        closeAll();
+    }
+
+    /**
+     * Close connections with nothing in flight that have not completed a request within the idle timeout
+     */
+    private void closeIdleConnections() {
+        long now = System.nanoTime();
+        if (now - nextIdleSweepNanos < 0) {
+            return;
+        }
+        nextIdleSweepNanos = now + TimeUnit.SECONDS.toNanos(config.reaperIntervalSeconds);
+        long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.clientIdleTimeoutSeconds);
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection
+                    && connection.inFlight == 0 && now - connection.lastActivityNanos > idleTimeoutNanos) {
+                logger.info("Closing idle NIO connection");
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting and let every connection finish what it has in flight (selector thread)
+     */
+    private void beginDrain() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.error("Error closing server channel", e);
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection) {
+                connection.drain();
+            }
+        }
+    }
+
+    private void runSelectorTasks() {
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Queue a task for the selector thread, which owns all channel and key state
+     */
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Accept every pending connection; stop accepting while at MAX_CONNECTIONS
+     */
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            logger.debug("New NIO client connection from {}", channel.getRemoteAddress());
+
+            if (activeConnections.incrementAndGet() >= config.maxConnections) {
+                acceptKey.interestOps(0);
+                logger.warn("Connection limit {} reached, pausing accept", config.maxConnections);
+                break;
+            }
+        }
+    }
+
+    private void connectionClosed() {
+        if (activeConnections.decrementAndGet() < config.maxConnections
+                && acceptKey.isValid() && acceptKey.interestOps() == 0) {
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    /**
+     * Close every channel and the selector (selector thread, on shutdown)
+     */
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                logger.debug("Error closing channel", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("Error closing selector", e);
+        }
+    }
+
+    /**
+     * Drain, then stop the selector thread and the worker executor
+     * Draining closes the listening channel, stops reading, and waits up to
+     * DRAIN_TIMEOUT_SECONDS for requests already with workers to be answered
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+
+        logger.info("Draining NIO Query Server: {} connections open (budget {} s)",
+                activeConnections.get(), config.drainTimeoutSeconds);
+        runOnSelector(this::beginDrain);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.drainTimeoutSeconds);
+        try {
+            while (activeConnections.get() > 0 && System.nanoTime() - deadline < 0) {
+                Thread.sleep(20);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (activeConnections.get() > 0) {
+            logger.warn("Drain budget exceeded, closing {} remaining connections", activeConnections.get());
+        }
+
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+
+        try {
+            if (selectorThread != null) {
+                selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (workers != null) {
+            workers.shutdown();
+            try {
+                if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+                    workers.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                workers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        logger.info("NIO Query Server stopped");
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getPort() {
+        return serverChannel != null ? serverChannel.socket().getLocalPort() : config.port;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Per-connection state, only touched on the selector thread
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer;
+        private final Deque<String> pendingRequests = new ArrayDeque<>();
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        private final Set<CompletableFuture<String>> pendingReplies = new HashSet<>();
+        private SelectionKey key;
+        private int inFlight;
+        private int requestCount;
+        private long lastActivityNanos = System.nanoTime();
+        private boolean pipelined;
+        private boolean inputDone;
+        private boolean negotiated;
+        private boolean limitReached;
+        private boolean closeAfterWrite;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.readBuffer = ByteBuffer.allocateDirect(config.nioBufferSize);
+        }
+
+        void read() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            frameLines();
+            dispatchNext();
+        }
+
+        /**
+         * Split complete lines out of the read buffer, keeping any partial line for the next read
+         */
+        private void frameLines() {
+            if (!negotiated && readBuffer.position() > 0) {
+                negotiated = true;
+                if ((readBuffer.get(0) & 0xFF) == BinaryFrameCodec.MAGIC) {
+                    outbound.add(BinaryFrameCodec.encodeFrame(BinaryFrameCodec.ERROR, 0, 0,
+                            "Binary framing requires SERVER_ENGINE=blocking"));
+                    inputDone = true;
+                    closeAfterWrite = true;
+                    return;
+                }
+            }
+            readBuffer.flip();
+            int lineStart = readBuffer.position();
+            for (int i = lineStart; i < readBuffer.limit() && !inputDone; i++) {
+                if (readBuffer.get(i) == NEWLINE) {
+                    int end = i;
+                    if (end > lineStart && readBuffer.get(end - 1) == CARRIAGE_RETURN) {
+                        end--;
+                    }
+                    String line = StandardCharsets.UTF_8.decode(readBuffer.slice(lineStart, end - lineStart)).toString();
+                    pendingRequests.add(line);
+                    lastActivityNanos = System.nanoTime();
+                    // An empty line or EXIT ends the conversation, like the blocking handler
+                    inputDone = line.isEmpty() || QueryProtocol.isExit(line);
+                    lineStart = i + 1;
+                }
+            }
+            readBuffer.position(lineStart);
+            readBuffer.compact();
+
+            if (!inputDone && !readBuffer.hasRemaining()) {
+                logger.warn("Request line exceeds {} bytes, closing connection", config.nioBufferSize);
+                pendingRequests.add(LINE_TOO_LONG);
+                inputDone = true;
+            }
+        }
+
+        /**
+         * Requests may go to workers while none is in flight, or below the limit when pipelined
+         */
+        private boolean canDispatch() {
+            return pipelined ? inFlight < config.pipelineMaxInFlight : inFlight == 0;
+        }
+
+        /**
+         * Hand complete requests to workers while the connection's in-flight limit allows
+         */
+        private void dispatchNext() throws IOException {
+            while (canDispatch() && !pendingRequests.isEmpty()) {
+                String request = pendingRequests.poll();
+                if (request.isEmpty() || QueryProtocol.isExit(request) || request.equals(LINE_TOO_LONG)) {
+                    if (inFlight > 0) {
+                        // Pipelined replies still outstanding; answer EXIT once they are written
+                        pendingRequests.addFirst(request);
+                        break;
+                    }
+                    if (request.equals(LINE_TOO_LONG)) {
+                        enqueue("ERROR:Request line too long\n" + QueryProtocol.BLOCK_END + "\n");
+                    } else if (limitReached) {
+                        enqueue("CLOSING:Maximum of " + config.clientMaxRequests + " requests per connection reached\n");
+                    } else if (!request.isEmpty()) {
+                        enqueue(QueryProtocol.EXIT_REPLY);
+                    }
+                    closeAfterWrite = true;
+                } else if (!pipelined && QueryProtocol.isPipeline(request)) {
+                    pipelined = true;
+                    enqueue(QueryProtocol.PIPELINE_REPLY);
+                } else if (!pipelined && QueryProtocol.parseBatchSize(request, config.batchMaxSize) >= 0) {
+                    int batchSize = QueryProtocol.parseBatchSize(request, config.batchMaxSize);
+                    if (batchSize == 0) {
+                        enqueue(QueryProtocol.batchError(config.batchMaxSize));
+                    } else if (pendingRequests.size() < batchSize) {
+                        // Keep reading until every query line of the batch has arrived
+                        pendingRequests.addFirst(request);
+                        break;
+                    } else {
+                        List<String> queries = new ArrayList<>(batchSize);
+                        for (int i = 0; i < batchSize; i++) {
+                            queries.add(pendingRequests.poll());
+                        }
+                        inFlight++;
+                        workers.execute(() -> processBatch(queries));
+                        countRequest();
+                    }
+                } else if (!pipelined && QueryProtocol.parseStreamQuery(request) != null) {
+                    String query = QueryProtocol.parseStreamQuery(request);
+                    inFlight++;
+                    workers.execute(() -> processStream(query));
+                    countRequest();
+                } else {
+                    inFlight++;
+                    process(request, pipelined);
+                    countRequest();
+                }
+            }
+            write();
+        }
+
+        /**
+         * Count a dispatched request against CLIENT_MAX_REQUESTS
+         */
+        private void countRequest() {
+            if (config.clientMaxRequests > 0 && ++requestCount >= config.clientMaxRequests) {
+                // Answer what is already dispatched, then say why the connection closes
+                pendingRequests.clear();
+                pendingRequests.add(QueryProtocol.EXIT_COMMAND);
+                inputDone = true;
+                limitReached = true;
+            }
+        }
+
+        /**
+         * Start a query or STATS request; the reply is passed back to the selector thread
+         * when its future completes
+         */
+        private void process(String request, boolean tagged) {
+            CompletableFuture<String> reply;
+            if (tagged) {
+                reply = protocol.processPipelinedAsync(request, workers);
+            } else if (QueryProtocol.isStats(request)) {
+                reply = CompletableFuture.supplyAsync(protocol::stats, workers);
+            } else {
+                reply = protocol.processQueryAsync(request, null, workers);
+            }
+            pendingReplies.add(reply);
+            reply.whenComplete((response, error) -> {
+                runOnSelector(() -> pendingReplies.remove(reply));
+                if (error instanceof CancellationException) {
+                    // Cancelled by close(): the channel is gone, only the in-flight count matters
+                    response = "";
+                } else if (error != null) {
+                    Throwable cause = error.getCause() != null ? error.getCause() : error;
+                    logger.error("Error processing request", cause);
+                    response = "ERROR:" + cause.getMessage() + "\n" + QueryProtocol.BLOCK_END + "\n";
+                }
+                complete(response);
+            });
+        }
+
+        /**
+         * Worker or completion side: pass a finished reply back to the selector thread
+         */
+        private void complete(String response) {
+            runOnSelector(() -> {
+                inFlight--;
+                lastActivityNanos = System.nanoTime();
+                if (!channel.isOpen()) {
+                    return;
+                }
+                enqueue(response);
+                try {
+                    dispatchNext();
+                } catch (IOException e) {
+                    logger.debug("Closing connection after I/O error: {}", e.getMessage());
+                    close();
+                }
+            });
+        }
+
+        private void processBatch(List<String> queries) {
+            String reply;
+            try {
+                reply = protocol.processBatch(queries, config.batchParallelism);
+            } catch (RuntimeException e) {
+                logger.error("Error processing batch", e);
+                reply = "ERROR:" + e.getMessage() + "\n" + QueryProtocol.BLOCK_END + "\n";
+            }
+            complete(reply);
+        }
+
+        /**
+         * Worker side: stream a query, handing each CHUNK line to the selector thread as it
+         * arrives; selector tasks run in order, so chunks are written before the closing lines
+         */
+        private void processStream(String query) {
+            String reply;
+            try {
+                reply = protocol.processStream(query, this::writeChunk);
+            } catch (RuntimeException e) {
+                logger.error("Error processing stream", e);
+                reply = "ERROR:" + e.getMessage() + "\n" + QueryProtocol.BLOCK_END + "\n";
+            }
+            complete(reply);
+        }
+
+        private void writeChunk(String chunk) {
+            runOnSelector(() -> {
+                lastActivityNanos = System.nanoTime();
+                if (!channel.isOpen()) {
+                    return;
+                }
+                enqueue(chunk);
+                try {
+                    write();
+                } catch (IOException e) {
+                    logger.debug("Closing connection after I/O error: {}", e.getMessage());
+                    close();
+                }
+            });
+        }
+
+        private void enqueue(String text) {
+            outbound.add(StandardCharsets.UTF_8.encode(text));
+        }
+
+        void write() throws IOException {
+            while (!outbound.isEmpty()) {
+                ByteBuffer buffer = outbound.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                outbound.poll();
+            }
+
+            if (outbound.isEmpty() && closeAfterWrite && inFlight == 0) {
+                close();
+                return;
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (canDispatch() && !inputDone) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!outbound.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Read nothing more; close once in-flight replies are written
+         */
+        void drain() {
+            inputDone = true;
+            closeAfterWrite = true;
+            pendingRequests.clear();
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing channel", e);
+            }
+            // Nobody is left to read these replies
+            for (CompletableFuture<String> reply : List.copyOf(pendingReplies)) {
+                reply.cancel(true);
+            }
+            connectionClosed();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.example.server;
+
+import com.example.db.DatabaseService;
+import com.example.metrics.Metrics;
+import com.example.metrics.StageMetrics;
+import com.example.nlp.NLPService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Newline socket protocol shared by the blocking and NIO server engines
+ * Turns one request line into the block of response lines written back to the client
+ *
+ * After PIPELINE a connection switches to pipelined mode: each line is "ID QUERY",
+ * requests run concurrently and every response block is tagged with its id
+ * ("RESPONSE ID:", "TIME ID:", "--- ID") so replies can arrive out of order
+ *
+ * "BATCH n" followed by n query lines runs the queries concurrently, stores them in one
+ * database batch and answers "BATCH:n" followed by the n RESPONSE blocks in request order
+ *
+ * "STREAM query" forwards the completion as it is generated, one "CHUNK:" line per piece
+ * (backslashes and newlines escaped as \\ and \n), followed by the TIME line and "---"
+ */
+class QueryProtocol {
+    private static final Logger logger = LoggerFactory.getLogger(QueryProtocol.class);
+
+    static final String STATS_COMMAND = "STATS";
+    static final String EXIT_COMMAND = "EXIT";
+    static final String PIPELINE_COMMAND = "PIPELINE";
+    static final String BATCH_COMMAND = "BATCH";
+    static final String STREAM_COMMAND = "STREAM";
+    static final String EXIT_REPLY = "Goodbye!\n";
+    static final String PIPELINE_REPLY = "PIPELINE:ON\n";
+    static final String BLOCK_END = "---";
+
+    private final NLPService nlpService;
+    private final DatabaseService dbService;
+    private final StageMetrics queryMetrics = Metrics.stage("socket", "command", "query");
+    private final StageMetrics streamMetrics = Metrics.stage("socket", "command", "stream");
+    private final StageMetrics batchMetrics = Metrics.stage("socket", "command", "batch");
+
+    QueryProtocol(NLPService nlpService, DatabaseService dbService) {
+        this.nlpService = nlpService;
+        this.dbService = dbService;
+    }
+
+    static boolean isStats(String line) {
+        return line.equalsIgnoreCase(STATS_COMMAND);
+    }
+
+    static boolean isExit(String line) {
+        return line.equalsIgnoreCase(EXIT_COMMAND);
+    }
+
+    static boolean isPipeline(String line) {
+        return line.equalsIgnoreCase(PIPELINE_COMMAND);
+    }
+
+    /**
+     * Parse a "BATCH n" header
+     * @return n, 0 for a malformed or out of range header, or -1 when the line is not a BATCH command
+     */
+    static int parseBatchSize(String line, int maxBatchSize) {
+        if (!line.toUpperCase(Locale.ROOT).startsWith(BATCH_COMMAND + " ")) {
+            return -1;
+        }
+        try {
+            int size = Integer.parseInt(line.substring(BATCH_COMMAND.length()).trim());
+            return size >= 1 && size <= maxBatchSize ? size : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Parse a "STREAM query" line
+     * @return the query, or null when the line is not a STREAM command
+     */
+    static String parseStreamQuery(String line) {
+        if (!line.toUpperCase(Locale.ROOT).startsWith(STREAM_COMMAND + " ")) {
+            return null;
+        }
+        String query = line.substring(STREAM_COMMAND.length()).trim();
+        return query.isEmpty() ? null : query;
+    }
+
+    static String batchError(int maxBatchSize) {
+        return "ERROR:Expected 'BATCH n' with 1 <= n <= " + maxBatchSize + "\n" + BLOCK_END + "\n";
+    }
+
+    /**
+     * Run a batch of queries with at most parallelism NLP calls at once, persist all
+     * results in one database batch and build the ordered BATCH reply
+     */
+    String processBatch(List<String> queries, int parallelism) {
+        long start = batchMetrics.begin();
+        boolean ok = false;
+        try {
+            String reply = runBatch(queries, parallelism);
+            ok = true;
+            return reply;
+        } finally {
+            batchMetrics.end(start, ok);
+        }
+    }
+
+    private String runBatch(List<String> queries, int parallelism) {
+        QueryResult[] results = new QueryResult[queries.size()];
+        Semaphore permits = new Semaphore(parallelism);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < queries.size(); i++) {
+                permits.acquireUninterruptibly();
+                int index = i;
+                executor.execute(() -> {
+                    try {
+                        long startTime = System.currentTimeMillis();
+                        String response = nlpService.processQuery(queries.get(index));
+                        results[index] = new QueryResult(response, System.currentTimeMillis() - startTime);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+
+        List<DatabaseService.QueryRecord> records = new ArrayList<>(queries.size());
+        StringBuilder reply = new StringBuilder("BATCH:").append(queries.size()).append('\n');
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < results.length; i++) {
+            QueryResult result = results[i] != null ? results[i] : new QueryResult("Error processing query", 0);
+            records.add(new DatabaseService.QueryRecord(0, queries.get(i), result.response, now, result.processingTimeMs));
+            reply.append("RESPONSE:").append(result.response).append('\n')
+                 .append("TIME:").append(result.processingTimeMs).append("ms\n")
+                 .append(BLOCK_END).append('\n');
+        }
+        dbService.saveQueryResults(records);
+
+        logger.info("Batch of {} queries processed", queries.size());
+        return reply.toString();
+    }
+
+    /**
+     * Handle one pipelined "ID QUERY" line (the query may also be STATS)
+     */
+    String processPipelined(String line) {
+        int separator = line.indexOf(' ');
+        String query = separator > 0 ? line.substring(separator + 1).trim() : "";
+        if (query.isEmpty()) {
+            return "ERROR:Pipelined requests must be '<id> <query>'\n" + BLOCK_END + "\n";
+        }
+        String requestId = line.substring(0, separator);
+        return isStats(query) ? stats(requestId) : processQuery(query, requestId);
+    }
+
+    /**
+     * Asynchronous processPipelined: the NLP call holds no thread while the LLM answers;
+     * STATS and storing the result run on the executor
+     * Cancelling the returned future aborts the NLP request
+     */
+    CompletableFuture<String> processPipelinedAsync(String line, Executor executor) {
+        int separator = line.indexOf(' ');
+        String query = separator > 0 ? line.substring(separator + 1).trim() : "";
+        if (query.isEmpty()) {
+            return CompletableFuture.completedFuture("ERROR:Pipelined requests must be '<id> <query>'\n" + BLOCK_END + "\n");
+        }
+        String requestId = line.substring(0, separator);
+        if (isStats(query)) {
+            return CompletableFuture.supplyAsync(() -> stats(requestId), executor);
+        }
+        return processQueryAsync(query, requestId, executor);
+    }
+
+    /**
+     * Asynchronous processQuery, tagging the block with the request id when one is given
+     * Cancelling the returned future aborts the NLP request
+     */
+    CompletableFuture<String> processQueryAsync(String query, String requestId, Executor executor) {
+        CompletableFuture<QueryResult> result = executeAsync(query, executor);
+        return forwardCancel(result.thenApply(r -> responseBlock(r, requestId)), result);
+    }
+
+    /**
+     * Process a query, store the result and build the RESPONSE/TIME block
+     */
+    String processQuery(String query) {
+        return processQuery(query, null);
+    }
+
+    /**
+     * Process a query, tagging the block with the request id when one is given
+     */
+    String processQuery(String query, String requestId) {
+        return responseBlock(execute(query), requestId);
+    }
+
+    private static String responseBlock(QueryResult result, String requestId) {
+        return "RESPONSE" + tag(requestId) + ":" + result.response + "\n" +
+               "TIME" + tag(requestId) + ":" + result.processingTimeMs + "ms\n" +
+               BLOCK_END + tag(requestId) + "\n";
+    }
+
+    /**
+     * Stream a query: each completion chunk is passed to out as a CHUNK line while the NLP
+     * service produces it, then the result is stored
+     * @return the closing TIME line and block terminator
+     */
+    String processStream(String query, Consumer<String> out) {
+        QueryResult result = executeStreaming(query, chunk -> out.accept("CHUNK:" + escapeChunk(chunk) + "\n"));
+        return "TIME:" + result.processingTimeMs + "ms\n" + BLOCK_END + "\n";
+    }
+
+    /**
+     * Stream a query through the NLP service, passing raw completion chunks to onChunk,
+     * and store the full result
+     */
+    QueryResult executeStreaming(String query, Consumer<String> onChunk) {
+        long start = streamMetrics.begin();
+        boolean ok = false;
+        try {
+            long startTime = System.currentTimeMillis();
+            String response = nlpService.processQueryStreaming(query, onChunk);
+            long processingTime = System.currentTimeMillis() - startTime;
+
+            dbService.saveQueryResult(query, response, processingTime);
+
+            logger.info("Streamed query processed in {} ms", processingTime);
+            ok = true;
+            return new QueryResult(response, processingTime);
+        } finally {
+            streamMetrics.end(start, ok);
+        }
+    }
+
+    /**
+     * Keep a chunk on one line so a newline in the completion cannot end the CHUNK early
+     */
+    static String escapeChunk(String chunk) {
+        return chunk.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Run a query through the NLP service and store the result, independent of wire format
+     */
+    QueryResult execute(String query) {
+        long start = queryMetrics.begin();
+        boolean ok = false;
+        try {
+            long startTime = System.currentTimeMillis();
+
+            // Process NLP query
+            String response = nlpService.processQuery(query);
+
+            long processingTime = System.currentTimeMillis() - startTime;
+
+            // Store in database
+            dbService.saveQueryResult(query, response, processingTime);
+
+            logger.info("Query processed in {} ms", processingTime);
+            ok = true;
+            return new QueryResult(response, processingTime);
+        } finally {
+            queryMetrics.end(start, ok);
+        }
+    }
+
+    /**
+     * Asynchronous execute: the NLP call runs without a thread, then the result is stored
+     * on the executor (JDBC blocks)
+     * Cancelling the returned future aborts the NLP request
+     */
+    CompletableFuture<QueryResult> executeAsync(String query, Executor executor) {
+        long start = queryMetrics.begin();
+        long startTime = System.currentTimeMillis();
+        CompletableFuture<String> response = nlpService.processQueryAsync(query);
+        CompletableFuture<QueryResult> result = response.thenApplyAsync(text -> {
+            long processingTime = System.currentTimeMillis() - startTime;
+            dbService.saveQueryResult(query, text, processingTime);
+            logger.info("Query processed in {} ms", processingTime);
+            return new QueryResult(text, processingTime);
+        }, executor);
+        result.whenComplete((r, error) -> queryMetrics.end(start, error == null));
+        return forwardCancel(result, response);
+    }
+
+    /**
+     * Cancel source when derived is cancelled (CompletableFuture does not do this itself)
+     */
+    private static <T> CompletableFuture<T> forwardCancel(CompletableFuture<T> derived, CompletableFuture<?> source) {
+        derived.whenComplete((value, error) -> {
+            if (derived.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        return derived;
+    }
+
+    /**
+     * Build the STATS block
+     */
+    String stats() {
+        return stats(null);
+    }
+
+    private String stats(String requestId) {
+        return "STATS" + tag(requestId) + ":\n" +
+               statsSummary() +
+               BLOCK_END + tag(requestId) + "\n";
+    }
+
+    /**
+     * Statistics lines without the STATS header or block terminator
+     */
+    String statsSummary() {
+        DatabaseService.DatabaseStats stats = dbService.getStats();
+        return "Total queries: " + stats.totalQueries + "\n" +
+               "Average processing time: " + String.format("%.2f", stats.averageProcessingTimeMs) + "ms\n";
+    }
+
+    private static String tag(String requestId) {
+        return requestId == null ? "" : " " + requestId;
+    }
+
+    /**
+     * QueryResult: NLP response, how long it took, and whether it is a real answer rather
+     * than one of the error strings the NLP and agent services reply with
+     */
+    static class QueryResult {
+        private static final List<String> ERROR_PREFIXES = List.of("API Error:", "Agent error", "Error processing query");
+
+        final String response;
+        final long processingTimeMs;
+        final boolean success;
+
+        QueryResult(String response, long processingTimeMs) {
+            this.response = response;
+            this.processingTimeMs = processingTimeMs;
+            this.success = response != null && ERROR_PREFIXES.stream().noneMatch(response::startsWith);
+        }
+    }
+}
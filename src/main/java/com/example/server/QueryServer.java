@@ -1,52 +1,115 @@
 package com.example.server;
 
 import com.example.db.DatabaseService;
+import com.example.metrics.Metrics;
 import com.example.nlp.NLPService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Socket Server that handles NLP queries from clients
- * Uses a thread pool to process concurrent requests
+ * Runs each connection on either a fixed thread pool or a virtual thread per connection.
+ * Admission control serves at most MAX_CONNECTIONS connections at once with up to
+ * MAX_QUEUED_CONNECTIONS waiting; further clients get an immediate BUSY line
+ * With SERVER_ENGINE=nio the connections are served by {@link NioQueryServer} instead
+ *
+ * ACCEPTOR_THREADS threads accept connections, each on its own SO_REUSEPORT listening
+ * socket where the OS supports it (the kernel then spreads new connections across them),
+ * otherwise all sharing one listening socket
+ *
+ * stop() drains: it stops accepting, lets requests already being processed finish and
+ * answer within DRAIN_TIMEOUT_SECONDS, and only then closes what is left
  */
 public class QueryServer {
     private static final Logger logger = LoggerFactory.getLogger(QueryServer.class);
     
-    private final int port;
-    private final int threadPoolSize;
+    private final ServerConfig config;
     private final NLPService nlpService;
     private final DatabaseService dbService;
+    private final AdmissionController admission;
+    private final Set<ClientHandler> activeHandlers = ConcurrentHashMap.newKeySet();
     private ExecutorService threadPool;
-    private ServerSocket serverSocket;
+    private ConnectionReaper reaper;
+    private final List<ServerSocket> serverSockets = new ArrayList<>();
+    private AcceptMeter acceptMeter;
+    private boolean reusePort;
+    private NioQueryServer nioServer;
     private volatile boolean running = false;
+    private volatile boolean draining = false;
     
     public QueryServer(int port, int threadPoolSize, NLPService nlpService, DatabaseService dbService) {
-        this.port = port;
-        this.threadPoolSize = threadPoolSize;
+        this(ServerConfig.fixedPool(port, threadPoolSize), nlpService, dbService);
+    }
+    
+    public QueryServer(ServerConfig config, NLPService nlpService, DatabaseService dbService) {
+        this.config = config;
         this.nlpService = nlpService;
         this.dbService = dbService;
+        
+        // A fixed pool can never serve more connections at once than it has threads
+        int maxInFlight = config.executorMode == ServerConfig.ExecutorMode.FIXED
+                ? Math.min(config.maxConnections, config.threadPoolSize)
+                : config.maxConnections;
+        this.admission = new AdmissionController(maxInFlight, config.maxQueuedConnections);
     }
     
     /**
      * Start the server and begin accepting connections
      */
     public void start() {
+        Metrics.gauge("socket_connections", "Client connections currently open (served or queued)",
+            this::getActiveConnections);
+        Metrics.counter("socket_connections_rejected_total", "Client connections answered BUSY (blocking engine)",
+            () -> admission.getStats().rejected);
         try {
-            threadPool = Executors.newFixedThreadPool(threadPoolSize);
-            serverSocket = new ServerSocket(port);
+            if (config.engine == ServerConfig.Engine.NIO) {
+                nioServer = new NioQueryServer(config, nlpService, dbService);
+                nioServer.start();
+                running = true;
+                return;
+            }
+            
+            threadPool = newExecutor(config, "query-client-");
+            openServerSockets();
+            acceptMeter = new AcceptMeter(config.acceptorThreads);
             running = true;
             
-            logger.info("Query Server started on port {} with thread pool size {}", port, threadPoolSize);
+            if (config.clientIdleTimeoutSeconds > 0) {
+                reaper = new ConnectionReaper(activeHandlers, TimeUnit.SECONDS.toMillis(config.clientIdleTimeoutSeconds));
+                reaper.start(TimeUnit.SECONDS.toMillis(config.reaperIntervalSeconds));
+            }
             
-            // Accept connections in a separate thread
-            new Thread(this::acceptConnections).start();
+            if (config.executorMode == ServerConfig.ExecutorMode.VIRTUAL) {
+                logger.info("Query Server started on port {} with virtual threads (max connections {}, max queued {})",
+                        getPort(), config.maxConnections, config.maxQueuedConnections);
+            } else {
+                logger.info("Query Server started on port {} with thread pool size {} (max connections {}, max queued {})",
+                        getPort(), config.threadPoolSize, config.maxConnections, config.maxQueuedConnections);
+            }
+            
+            // Accept connections on dedicated acceptor threads
+            for (int i = 0; i < config.acceptorThreads; i++) {
+                int acceptor = i;
+                ServerSocket listener = serverSockets.get(i % serverSockets.size());
+                new Thread(() -> acceptConnections(acceptor, listener), "query-acceptor-" + i).start();
+            }
+            logger.info("{} acceptor thread(s) on {} listening socket(s){}", config.acceptorThreads,
+                    serverSockets.size(), reusePort ? " with SO_REUSEPORT" : "");
             
         } catch (IOException e) {
             logger.error("Error starting server", e);
@@ -54,17 +117,75 @@ public class QueryServer {
         }
     }
     
+    /**
+     * Bind the listening socket(s): one per acceptor with SO_REUSEPORT, else a single shared one
+     */
+    private void openServerSockets() throws IOException {
+        ServerSocket first = new ServerSocket();
+        reusePort = config.acceptorThreads > 1
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort) {
+            first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        } else if (config.acceptorThreads > 1) {
+            logger.info("SO_REUSEPORT not supported, acceptors will share one listening socket");
+        }
+        first.bind(new InetSocketAddress(config.port), config.acceptBacklog);
+        serverSockets.add(first);
+        
+        if (reusePort) {
+            // Bind to the resolved port so an ephemeral PORT=0 still yields one shared port
+            for (int i = 1; i < config.acceptorThreads; i++) {
+                ServerSocket socket = new ServerSocket();
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                socket.bind(new InetSocketAddress(first.getLocalPort()), config.acceptBacklog);
+                serverSockets.add(socket);
+            }
+        }
+    }
+    
+    /**
+     * Create the executor that runs client work for the configured executor mode
+     */
+    static ExecutorService newExecutor(ServerConfig config, String threadNamePrefix) {
+        return newExecutor(config.executorMode, config.threadPoolSize, threadNamePrefix);
+    }
+    
+    static ExecutorService newExecutor(ServerConfig.ExecutorMode mode, int poolSize, String threadNamePrefix) {
+        if (mode == ServerConfig.ExecutorMode.VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name(threadNamePrefix, 0).factory()
+            );
+        }
+        return Executors.newFixedThreadPool(
+            poolSize,
+            Thread.ofPlatform().name(threadNamePrefix, 0).factory()
+        );
+    }
+    
     /**
      * Accept incoming client connections
+     * Connections beyond the in-flight and queue limits are answered with BUSY and closed
      */
-    private void acceptConnections() {
+    private void acceptConnections(int acceptor, ServerSocket serverSocket) {
         while (running && !Thread.currentThread().isInterrupted()) {
             try {
                 Socket clientSocket = serverSocket.accept();
+                acceptMeter.record(acceptor);
                 logger.debug("New client connection from {}", clientSocket.getInetAddress());
                 
-                // Submit client handler to thread pool
-                threadPool.submit(new ClientHandler(clientSocket, nlpService, dbService));
+                if (!admission.tryAdmit()) {
+                    rejectBusy(clientSocket);
+                    continue;
+                }
+                
+                // Submit client handler to the executor; it waits (queued) for an in-flight slot
+                ClientHandler handler = new ClientHandler(clientSocket, nlpService, dbService, config);
+                try {
+                    threadPool.execute(() -> runAdmitted(handler));
+                } catch (RejectedExecutionException e) {
+                    admission.release(false);
+                    clientSocket.close();
+                }
                 
             } catch (IOException e) {
                 if (running) {
@@ -75,23 +196,95 @@ public class QueryServer {
     }
     
     /**
-     * Stop the server and cleanup resources
+     * Run an admitted connection once an in-flight slot is free
+     */
+    private void runAdmitted(ClientHandler handler) {
+        boolean started = false;
+        try {
+            admission.awaitTurn();
+            started = true;
+            activeHandlers.add(handler);
+            if (draining) {
+                // Queued before shutdown began; never served, so tell the client to retry
+                handler.rejectBusy(config.busyRetryAfterSeconds);
+                return;
+            }
+            handler.run();
+        } catch (InterruptedException e) {
+            handler.close();
+            Thread.currentThread().interrupt();
+        } finally {
+            activeHandlers.remove(handler);
+            admission.release(started);
+        }
+    }
+    
+    /**
+     * Fast-fail an over-capacity connection with a retry hint
+     */
+    private void rejectBusy(Socket clientSocket) {
+        try (clientSocket) {
+            writeBusy(clientSocket.getOutputStream(), config.busyRetryAfterSeconds);
+        } catch (IOException e) {
+            logger.debug("Error rejecting busy connection: {}", e.getMessage());
+        }
+        AdmissionController.AdmissionStats stats = admission.getStats();
+        logger.warn("Connection rejected (in flight {}, queued {}, rejected total {})",
+                stats.inFlight, stats.queued, stats.rejected);
+    }
+    
+    /**
+     * Write the BUSY line with its retry hint
+     */
+    static void writeBusy(OutputStream out, int retryAfterSeconds) throws IOException {
+        out.write(("BUSY:retry-after=" + retryAfterSeconds + "s\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+    
+    /**
+     * Stop the server, draining in-flight requests before cleaning up resources
      */
     public void stop() {
         running = false;
+        draining = true;
         
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+        if (nioServer != null) {
+            nioServer.stop();
+            return;
+        }
+        
+        // Stop accepting new connections
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                if (!serverSocket.isClosed()) {
+                    serverSocket.close();
+                }
+            } catch (IOException e) {
+                logger.error("Error closing server socket", e);
             }
-        } catch (IOException e) {
-            logger.error("Error closing server socket", e);
+        }
+        
+        if (reaper != null) {
+            reaper.stop();
         }
         
         if (threadPool != null) {
+            AdmissionController.AdmissionStats stats = admission.getStats();
+            logger.info("Draining Query Server: {} connections in flight, {} queued (budget {} s)",
+                    stats.inFlight, stats.queued, config.drainTimeoutSeconds);
+            
+            // Half-close every connection: requests already read finish and answer, then handlers see EOF
+            for (ClientHandler handler : activeHandlers) {
+                handler.drain();
+            }
+            
             threadPool.shutdown();
             try {
-                if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
+                if (!threadPool.awaitTermination(config.drainTimeoutSeconds, TimeUnit.SECONDS)) {
+                    logger.warn("Drain budget exceeded, closing {} remaining connections", activeHandlers.size());
+                    for (ClientHandler handler : activeHandlers) {
+                        handler.close();
+                    }
                     threadPool.shutdownNow();
                 }
             } catch (InterruptedException e) {
@@ -106,4 +299,45 @@ public class QueryServer {
     public boolean isRunning() {
         return running;
     }
+    
+    /**
+     * Port the server is bound to (resolves an ephemeral port 0 once started)
+     */
+    public int getPort() {
+        if (nioServer != null) {
+            return nioServer.getPort();
+        }
+        return serverSockets.isEmpty() ? config.port : serverSockets.get(0).getLocalPort();
+    }
+    
+    /**
+     * Number of client connections currently open (served or queued)
+     */
+    public int getActiveConnections() {
+        if (nioServer != null) {
+            return nioServer.getActiveConnections();
+        }
+        AdmissionController.AdmissionStats stats = admission.getStats();
+        return stats.inFlight + stats.queued;
+    }
+    
+    /**
+     * Admitted/rejected connection counters for the blocking engine
+     */
+    public AdmissionController.AdmissionStats getAdmissionStats() {
+        return admission.getStats();
+    }
+    
+    /**
+     * Accepted connection counters per acceptor thread (blocking engine)
+     */
+    public AcceptMeter.AcceptStats getAcceptStats() {
+        return acceptMeter != null
+                ? acceptMeter.getStats(reusePort)
+                : new AcceptMeter(config.acceptorThreads).getStats(false);
+    }
+    
+    public ServerConfig getConfig() {
+        return config;
+    }
 }
@@ -0,0 +1,233 @@
+package com.example.server;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * gzip/deflate encoding for dynamic WebServer responses
+ * The encoding is negotiated from Accept-Encoding. Buffered replies are held until they
+ * pass WEB_COMPRESSION_MIN_BYTES: smaller ones go out uncompressed with an exact
+ * Content-Length, larger ones are compressed and chunked. Streaming replies are committed
+ * at once and every flush() is a SYNC_FLUSH, so each streamed piece still reaches the
+ * client immediately
+ *
+ * Deflaters are expensive to allocate (native zlib state), and with virtual threads a
+ * per-thread cache would be rebuilt for every request, so they are reset and reused from a
+ * shared pool instead
+ */
+class ResponseCompressor {
+    /** Exchange attribute under which the server's compressor is published to handlers */
+    static final String ATTRIBUTE = ResponseCompressor.class.getName();
+
+    private static final int MAX_POOLED = 64;
+
+    private final int minBytes;
+    private final int level;
+    private final Queue<Deflater> gzipDeflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param level zlib level 1-9; 0 disables compression
+     */
+    ResponseCompressor(int minBytes, int level) {
+        this.minBytes = Math.max(0, minBytes);
+        this.level = level;
+    }
+
+    /**
+     * Open the response body, compressing when the client accepts it
+     * Falls back to a plain chunked or sized body when the exchange has no compressor
+     * @param streaming true when the handler flushes partial output that must not be held back
+     */
+    static OutputStream open(HttpExchange exchange, int status, boolean streaming) throws IOException {
+        ResponseCompressor compressor = (ResponseCompressor) exchange.getAttribute(ATTRIBUTE);
+        if (compressor != null && compressor.level > 0) {
+            exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+        }
+        String encoding = compressor != null ? compressor.negotiate(exchange) : null;
+        if (encoding == null) {
+            exchange.sendResponseHeaders(status, 0);
+            return exchange.getResponseBody();
+        }
+        if (streaming) {
+            return compressor.commit(exchange, status, encoding);
+        }
+        return compressor.new ThresholdStream(exchange, status, encoding);
+    }
+
+    private String negotiate(HttpExchange exchange) {
+        if (level == 0 || exchange.getResponseHeaders().containsKey("Content-Encoding")) {
+            return null;
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accepts(acceptEncoding, "gzip")) {
+            return "gzip";
+        }
+        if (accepts(acceptEncoding, "deflate")) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    /**
+     * Send headers for a compressed chunked body and return the compressing stream
+     */
+    private OutputStream commit(HttpExchange exchange, int status, String encoding) throws IOException {
+        exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        exchange.sendResponseHeaders(status, 0);
+        boolean gzip = encoding.equals("gzip");
+        return new CompressingStream(exchange.getResponseBody(), acquire(gzip), gzip);
+    }
+
+    private Deflater acquire(boolean gzip) {
+        Deflater deflater = (gzip ? gzipDeflaters : zlibDeflaters).poll();
+        // gzip carries its own header and trailer, so it uses raw deflate (nowrap)
+        return deflater != null ? deflater : new Deflater(level, gzip);
+    }
+
+    private void release(Deflater deflater, boolean gzip) {
+        Queue<Deflater> pool = gzip ? gzipDeflaters : zlibDeflaters;
+        if (pool.size() < MAX_POOLED) {
+            deflater.reset();
+            pool.add(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Whether an Accept-Encoding header allows the coding (absent, or q=0, means no)
+     */
+    static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (!name.equals(coding) && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Holds output until it passes the threshold, then switches to a compressed body
+     */
+    private class ThresholdStream extends OutputStream {
+        private final HttpExchange exchange;
+        private final int status;
+        private final String encoding;
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private OutputStream out;
+
+        ThresholdStream(HttpExchange exchange, int status, String encoding) {
+            this.exchange = exchange;
+            this.status = status;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out != null) {
+                out.write(b, off, len);
+                return;
+            }
+            pending.write(b, off, len);
+            if (pending.size() >= minBytes) {
+                out = commit(exchange, status, encoding);
+                pending.writeTo(out);
+                pending = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out == null) {
+                // Below the threshold: not worth compressing, and the length is now known
+                exchange.sendResponseHeaders(status, pending.size() == 0 ? -1 : pending.size());
+                out = exchange.getResponseBody();
+                pending.writeTo(out);
+                pending = null;
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Deflate (zlib) or gzip body over a pooled Deflater
+     */
+    private class CompressingStream extends DeflaterOutputStream {
+        private final boolean gzip;
+        private final CRC32 crc = new CRC32();
+        private boolean closed;
+
+        CompressingStream(OutputStream body, Deflater deflater, boolean gzip) throws IOException {
+            super(body, deflater, 8192, true);
+            this.gzip = gzip;
+            if (gzip) {
+                // Header: magic, CM=deflate, no flags, no mtime, XFL=0, OS=unknown
+                out.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (gzip) {
+                crc.update(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                finish();
+                if (gzip) {
+                    writeIntLE((int) crc.getValue());
+                    writeIntLE(def.getTotalIn());
+                }
+                out.close();
+            } finally {
+                release(def, gzip);
+            }
+        }
+
+        private void writeIntLE(int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >> 8) & 0xff);
+            out.write((value >> 16) & 0xff);
+            out.write((value >> 24) & 0xff);
+        }
+    }
+}
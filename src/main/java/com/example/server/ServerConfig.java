@@ -0,0 +1,192 @@
+package com.example.server;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Server configuration for the socket and HTTP servers
+ * Built from the key/value pairs loaded from the .env file, with defaults for missing keys
+ */
+public class ServerConfig {
+
+    /**
+     * How client connections (or HTTP exchanges) are mapped onto threads
+     */
+    public enum ExecutorMode {
+        /** Bounded pool of platform threads (THREAD_POOL_SIZE / WEB_THREAD_POOL_SIZE) */
+        FIXED,
+        /** One virtual thread per connection or exchange, capped by MAX_CONNECTIONS / WEB_MAX_CONCURRENT_REQUESTS */
+        VIRTUAL;
+
+        static ExecutorMode parse(String key, String value) {
+            try {
+                return ExecutorMode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown " + key + ": " + value + " (expected fixed or virtual)");
+            }
+        }
+    }
+
+    /**
+     * Socket I/O engine
+     */
+    public enum Engine {
+        /** ServerSocket with one blocking ClientHandler per connection */
+        BLOCKING,
+        /** Selector event loop framing requests for a worker pool */
+        NIO;
+
+        static Engine parse(String value) {
+            try {
+                return Engine.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown SERVER_ENGINE: " + value + " (expected blocking or nio)");
+            }
+        }
+    }
+
+    public final int port;
+    public final int threadPoolSize;
+    public final ExecutorMode executorMode;
+    public final int maxConnections;
+    public final int acceptorThreads;
+    public final int acceptBacklog;
+    public final int maxQueuedConnections;
+    public final int busyRetryAfterSeconds;
+    public final Engine engine;
+    public final int nioBufferSize;
+    public final int pipelineMaxInFlight;
+    public final int binaryMaxFrameSize;
+    public final int batchMaxSize;
+    public final int batchParallelism;
+    public final int clientIdleTimeoutSeconds;
+    public final int clientMaxRequests;
+    public final int reaperIntervalSeconds;
+    public final int drainTimeoutSeconds;
+    public final int webPort;
+    public final ExecutorMode webExecutorMode;
+    public final int webThreadPoolSize;
+    public final int webMaxConcurrentRequests;
+    public final int webAssetMaxAgeSeconds;
+    public final String webAssetDevDir;
+    public final int webCompressionMinBytes;
+    public final int webCompressionLevel;
+    public final int jobWorkers;
+    public final int jobMaxQueued;
+    public final int jobResultTtlSeconds;
+    public final int queryLimitInitial;
+    public final int queryLimitMin;
+    public final int queryLimitMax;
+
+    private ServerConfig(Map<String, String> env) {
+        this.port = intValue(env, "PORT", 9999);
+        this.threadPoolSize = intValue(env, "THREAD_POOL_SIZE", 50);
+        this.executorMode = ExecutorMode.parse("SERVER_EXECUTOR", env.getOrDefault("SERVER_EXECUTOR", "fixed"));
+        this.maxConnections = intValue(env, "MAX_CONNECTIONS", 10_000);
+        this.acceptorThreads = Math.max(1, intValue(env, "ACCEPTOR_THREADS", 1));
+        this.acceptBacklog = intValue(env, "ACCEPT_BACKLOG", 50);
+        this.maxQueuedConnections = intValue(env, "MAX_QUEUED_CONNECTIONS", 100);
+        this.busyRetryAfterSeconds = intValue(env, "BUSY_RETRY_AFTER_SECONDS", 1);
+        this.engine = Engine.parse(env.getOrDefault("SERVER_ENGINE", "blocking"));
+        this.nioBufferSize = intValue(env, "NIO_BUFFER_SIZE", 16 * 1024);
+        this.pipelineMaxInFlight = intValue(env, "PIPELINE_MAX_IN_FLIGHT", 16);
+        this.binaryMaxFrameSize = intValue(env, "BINARY_MAX_FRAME_SIZE", 1024 * 1024);
+        this.batchMaxSize = intValue(env, "BATCH_MAX_SIZE", 10_000);
+        this.batchParallelism = intValue(env, "BATCH_PARALLELISM", 8);
+        this.clientIdleTimeoutSeconds = intValue(env, "CLIENT_IDLE_TIMEOUT_SECONDS", 300);
+        this.clientMaxRequests = intValue(env, "CLIENT_MAX_REQUESTS", 0);
+        this.reaperIntervalSeconds = intValue(env, "REAPER_INTERVAL_SECONDS", 10);
+        if (reaperIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("REAPER_INTERVAL_SECONDS must be positive: " + reaperIntervalSeconds);
+        }
+        this.drainTimeoutSeconds = intValue(env, "DRAIN_TIMEOUT_SECONDS", 30);
+        this.webPort = intValue(env, "WEB_PORT", 8080);
+        this.webExecutorMode = ExecutorMode.parse("WEB_EXECUTOR", env.getOrDefault("WEB_EXECUTOR", "virtual"));
+        this.webThreadPoolSize = intValue(env, "WEB_THREAD_POOL_SIZE", 50);
+        this.webMaxConcurrentRequests = intValue(env, "WEB_MAX_CONCURRENT_REQUESTS", 1000);
+        this.webAssetMaxAgeSeconds = intValue(env, "WEB_ASSET_MAX_AGE_SECONDS", 300);
+        this.webAssetDevDir = env.getOrDefault("WEB_ASSET_DEV_DIR", "").trim();
+        this.webCompressionMinBytes = intValue(env, "WEB_COMPRESSION_MIN_BYTES", 1024);
+        this.webCompressionLevel = intValue(env, "WEB_COMPRESSION_LEVEL", 6);
+        if (webCompressionLevel < 0 || webCompressionLevel > 9) {
+            throw new IllegalArgumentException("WEB_COMPRESSION_LEVEL must be between 0 and 9: " + webCompressionLevel);
+        }
+        this.jobWorkers = Math.max(1, intValue(env, "JOB_WORKERS", 8));
+        this.jobMaxQueued = intValue(env, "JOB_MAX_QUEUED", 100);
+        this.jobResultTtlSeconds = intValue(env, "JOB_RESULT_TTL_SECONDS", 600);
+        this.queryLimitMax = intValue(env, "QUERY_LIMIT_MAX", 200);
+        this.queryLimitMin = Math.max(1, Math.min(intValue(env, "QUERY_LIMIT_MIN", 2), Math.max(1, queryLimitMax)));
+        this.queryLimitInitial = Math.max(queryLimitMin, Math.min(intValue(env, "QUERY_LIMIT_INITIAL", 20), Math.max(1, queryLimitMax)));
+    }
+
+    /**
+     * Build configuration from environment values
+     */
+    public static ServerConfig fromEnv(Map<String, String> env) {
+        return new ServerConfig(env);
+    }
+
+    /**
+     * Configuration with every key at its default
+     */
+    public static ServerConfig defaults() {
+        return new ServerConfig(Map.of());
+    }
+
+    /**
+     * Configuration for a fixed thread pool of the given size (pre-config constructor behaviour)
+     */
+    static ServerConfig fixedPool(int port, int threadPoolSize) {
+        return new ServerConfig(Map.of(
+            "PORT", String.valueOf(port),
+            "THREAD_POOL_SIZE", String.valueOf(threadPoolSize)
+        ));
+    }
+
+    static int intValue(Map<String, String> env, String key, int defaultValue) {
+        String value = env.get(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid integer for " + key + ": " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ServerConfig{" +
+                "port=" + port +
+                ", engine=" + engine +
+                ", executorMode=" + executorMode +
+                ", threadPoolSize=" + threadPoolSize +
+                ", maxConnections=" + maxConnections +
+                ", maxQueuedConnections=" + maxQueuedConnections +
+                ", acceptorThreads=" + acceptorThreads +
+                ", nioBufferSize=" + nioBufferSize +
+                ", pipelineMaxInFlight=" + pipelineMaxInFlight +
+                ", binaryMaxFrameSize=" + binaryMaxFrameSize +
+                ", batchMaxSize=" + batchMaxSize +
+                ", batchParallelism=" + batchParallelism +
+                ", clientIdleTimeoutSeconds=" + clientIdleTimeoutSeconds +
+                ", clientMaxRequests=" + clientMaxRequests +
+                ", drainTimeoutSeconds=" + drainTimeoutSeconds +
+                ", webPort=" + webPort +
+                ", webExecutorMode=" + webExecutorMode +
+                ", webThreadPoolSize=" + webThreadPoolSize +
+                ", webMaxConcurrentRequests=" + webMaxConcurrentRequests +
+                ", webAssetMaxAgeSeconds=" + webAssetMaxAgeSeconds +
+                ", webAssetDevDir=" + webAssetDevDir +
+                ", webCompressionMinBytes=" + webCompressionMinBytes +
+                ", webCompressionLevel=" + webCompressionLevel +
+                ", jobWorkers=" + jobWorkers +
+                ", jobMaxQueued=" + jobMaxQueued +
+                ", jobResultTtlSeconds=" + jobResultTtlSeconds +
+                ", queryLimitInitial=" + queryLimitInitial +
+                ", queryLimitMin=" + queryLimitMin +
+                ", queryLimitMax=" + queryLimitMax +
+                '}';
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.server;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Server-Sent Events over an HTTP exchange
+ * Each event is "event: name" plus one "data:" line holding a JSON object, flushed at once.
+ * If the client goes away, later events are dropped quietly so the query still completes
+ * and is stored
+ */
+class SseWriter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SseWriter.class);
+
+    private final HttpExchange exchange;
+    private final OutputStream out;
+    private boolean disconnected;
+
+    /**
+     * Send the event-stream headers; the body is chunked and stays open until close()
+     */
+    SseWriter(HttpExchange exchange) throws IOException {
+        this.exchange = exchange;
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        this.out = exchange.getResponseBody();
+    }
+
+    /**
+     * Send one event whose data is the JSON object written by body
+     */
+    synchronized void event(String name, JsonCodec.BodyWriter body) {
+        if (disconnected) {
+            return;
+        }
+        try {
+            // JSON escapes newlines, so the data always fits on one line
+            StringWriter data = new StringWriter();
+            body.write(new JsonWriter(data));
+            out.write(("event: " + name + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            logger.debug("Event stream client disconnected: {}", e.getMessage());
+            disconnected = true;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        exchange.close();
+    }
+}
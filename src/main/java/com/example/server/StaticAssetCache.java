@@ -0,0 +1,297 @@
+package com.example.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory cache of the static frontend assets
+ * Assets are read once from the classpath (so they are served the same from the IDE and
+ * from the assembled jar), compressed once into gzip and deflate variants, and kept in an
+ * immutable map. Each variant has a strong ETag; a matching If-None-Match gets 304
+ *
+ * With WEB_ASSET_DEV_DIR set, assets are read from that directory instead and reloaded
+ * whenever a file there changes, and responses are marked no-cache
+ */
+class StaticAssetCache {
+    private static final Logger logger = LoggerFactory.getLogger(StaticAssetCache.class);
+
+    private static final String NOT_FOUND = "404 Not Found";
+
+    private final List<String> names;
+    private final Path devDir;
+    private final String cacheControl;
+    private volatile Map<String, Asset> assets;
+    private WatchService watcher;
+
+    /**
+     * @param names asset file names, relative to the classpath root (or to devDir)
+     * @param devDir directory to load from and watch, or null to load once from the classpath
+     */
+    StaticAssetCache(List<String> names, Path devDir, int maxAgeSeconds) {
+        this.names = List.copyOf(names);
+        this.devDir = devDir;
+        this.cacheControl = devDir != null ? "no-cache" : "public, max-age=" + maxAgeSeconds;
+        this.assets = loadAll();
+    }
+
+    private Map<String, Asset> loadAll() {
+        Map<String, Asset> loaded = new HashMap<>();
+        for (String name : names) {
+            try {
+                byte[] content = read(name);
+                if (content == null) {
+                    logger.error("Static asset not found: {}", name);
+                    continue;
+                }
+                loaded.put(name, Asset.of(contentType(name), content));
+            } catch (IOException e) {
+                logger.error("Error loading static asset: {}", name, e);
+            }
+        }
+        logger.info("Loaded {} static assets from {}", loaded.size(), devDir != null ? devDir : "classpath");
+        return Map.copyOf(loaded);
+    }
+
+    private byte[] read(String name) throws IOException {
+        if (devDir != null) {
+            Path file = devDir.resolve(name);
+            return Files.exists(file) ? Files.readAllBytes(file) : null;
+        }
+        try (InputStream in = StaticAssetCache.class.getResourceAsStream("/" + name)) {
+            return in != null ? in.readAllBytes() : null;
+        }
+    }
+
+    /**
+     * Watch the dev directory and reload every asset when one of them changes
+     */
+    void startWatching() throws IOException {
+        if (devDir == null) {
+            return;
+        }
+        watcher = devDir.getFileSystem().newWatchService();
+        devDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread.ofPlatform().name("web-asset-watcher").daemon(true).start(this::watch);
+        logger.info("Watching {} for static asset changes", devDir);
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path path && names.contains(path.toString())) {
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    assets = loadAll();
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+
+    void stop() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                logger.debug("Error closing asset watcher: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serve an asset: gzip, then deflate, then identity as the client accepts, or 304 when its cached copy is current
+     */
+    void serve(HttpExchange exchange, String name) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        Asset asset = assets.get(name);
+        if (asset == null) {
+            byte[] body = NOT_FOUND.getBytes();
+            exchange.sendResponseHeaders(404, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+            return;
+        }
+
+        Variant variant = asset.select(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        var headers = exchange.getResponseHeaders();
+        headers.set("ETag", variant.etag);
+        headers.set("Cache-Control", cacheControl);
+        headers.set("Vary", "Accept-Encoding");
+
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), variant.etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        headers.set("Content-Type", asset.contentType);
+        if (variant.encoding != null) {
+            headers.set("Content-Encoding", variant.encoding);
+        }
+        if ("HEAD".equals(method)) {
+            headers.set("Content-Length", String.valueOf(variant.body.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(200, variant.body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(variant.body);
+        }
+    }
+
+    /**
+     * Whether an If-None-Match header lists the ETag (or is *)
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String contentType(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".html")) return "text/html; charset=utf-8";
+        if (lower.endsWith(".css")) return "text/css; charset=utf-8";
+        if (lower.endsWith(".js")) return "text/javascript; charset=utf-8";
+        if (lower.endsWith(".json")) return "application/json; charset=utf-8";
+        if (lower.endsWith(".svg")) return "image/svg+xml";
+        if (lower.endsWith(".png")) return "image/png";
+        if (lower.endsWith(".ico")) return "image/x-icon";
+        return "application/octet-stream";
+    }
+
+    /**
+     * One asset and its precompressed variants
+     */
+    private static class Asset {
+        final String contentType;
+        final Variant identity;
+        final Variant gzip;
+        final Variant deflate;
+
+        private Asset(String contentType, Variant identity, Variant gzip, Variant deflate) {
+            this.contentType = contentType;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.deflate = deflate;
+        }
+
+        static Asset of(String contentType, byte[] content) throws IOException {
+            String hash = hash(content);
+            Variant identity = new Variant(null, content, "\"" + hash + "\"");
+            Variant gzip = compressed("gzip", gzip(content), hash, identity);
+            Variant deflate = compressed("deflate", deflate(content), hash, identity);
+            return new Asset(contentType, identity, gzip, deflate);
+        }
+
+        /**
+         * Keep a compressed variant only when it is actually smaller
+         */
+        private static Variant compressed(String encoding, byte[] body, String hash, Variant identity) {
+            return body.length < identity.body.length ? new Variant(encoding, body, "\"" + hash + "-" + encoding + "\"") : null;
+        }
+
+        /**
+         * Prefer gzip over deflate: it is barely larger and clients never misread it as raw deflate
+         */
+        Variant select(String acceptEncoding) {
+            if (gzip != null && ResponseCompressor.accepts(acceptEncoding, "gzip")) {
+                return gzip;
+            }
+            if (deflate != null && ResponseCompressor.accepts(acceptEncoding, "deflate")) {
+                return deflate;
+            }
+            return identity;
+        }
+    }
+
+    /**
+     * One encoding of an asset, with its own strong ETag
+     */
+    private static class Variant {
+        final String encoding;
+        final byte[] body;
+        final String etag;
+
+        Variant(String encoding, byte[] body, String etag) {
+            this.encoding = encoding;
+            this.body = body;
+            this.etag = etag;
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater)) {
+            deflate.write(content);
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -3,50 +3,95 @@ package com.example.server;
 import com.example.db.DatabaseService;
 import com.example.nlp.NLPService;
 import com.example.nlp.AgentNLPService;
+import com.example.nlp.QueryProgressListener;
 import com.example.mcp.MCPServerManager;
+import com.example.metrics.Metrics;
+import com.example.metrics.StageMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  * HTTP Server that serves the frontend and provides REST API
  * Supports both traditional NLPService and agent-based AgentNLPService
+ * Exchanges run on WEB_EXECUTOR (a virtual thread per request by default, or a pool of
+ * WEB_THREAD_POOL_SIZE platform threads) so a slow agent run never holds up other requests;
+ * beyond WEB_MAX_CONCURRENT_REQUESTS requests are answered 503 with Retry-After at once.
+ * Queries are further held to an adaptive limit that follows observed query latency
+ * (QUERY_LIMIT_*), so a slowing LLM backend sheds load instead of building a queue
+ * stop() drains: in-flight requests get up to DRAIN_TIMEOUT_SECONDS to complete
  */
 public class WebServer {
     private static final Logger logger = LoggerFactory.getLogger(WebServer.class);
     
     private final int port;
+    private final ServerConfig config;
     private final NLPService nlpService;
     private final AgentNLPService agentService;
     private final DatabaseService dbService;
     private final boolean useAgentMode;
+    private final AdmissionController admission;
+    private final ResponseCompressor compressor;
+    private final AdaptiveLimiter queryLimiter;
+    private StaticAssetCache assets;
+    private JobManager jobs;
     private HttpServer httpServer;
+    private ExecutorService executor;
     
     // Constructor with traditional NLPService
     public WebServer(int port, NLPService nlpService, DatabaseService dbService) {
-        this.port = port;
-        this.nlpService = nlpService;
-        this.agentService = null;
-        this.dbService = dbService;
-        this.useAgentMode = false;
+        this(port, ServerConfig.defaults(), nlpService, null, dbService);
     }
     
     // Constructor with AgentNLPService (MCP mode)
     public WebServer(int port, AgentNLPService agentService, DatabaseService dbService) {
+        this(port, ServerConfig.defaults(), null, agentService, dbService);
+    }
+    
+    // Constructor with traditional NLPService and full configuration
+    public WebServer(ServerConfig config, NLPService nlpService, DatabaseService dbService) {
+        this(config.webPort, config, nlpService, null, dbService);
+    }
+    
+    // Constructor with AgentNLPService (MCP mode) and full configuration
+    public WebServer(ServerConfig config, AgentNLPService agentService, DatabaseService dbService) {
+        this(config.webPort, config, null, agentService, dbService);
+    }
+    
+    private WebServer(int port, ServerConfig config, NLPService nlpService,
+                      AgentNLPService agentService, DatabaseService dbService) {
         this.port = port;
-        this.nlpService = null;
+        this.config = config;
+        this.nlpService = nlpService;
         this.agentService = agentService;
         this.dbService = dbService;
-        this.useAgentMode = true;
+        this.useAgentMode = agentService != null;
+        this.admission = new AdmissionController(config.webMaxConcurrentRequests, 0);
+        this.compressor = new ResponseCompressor(config.webCompressionMinBytes, config.webCompressionLevel);
+        this.queryLimiter = config.queryLimitMax > 0
+            ? new AdaptiveLimiter(config.queryLimitInitial, config.queryLimitMin, config.queryLimitMax)
+            : null;
     }
     
     /**
@@ -57,17 +102,38 @@ public class WebServer {
             httpServer = HttpServer.create(new InetSocketAddress(port), 0);
             
             // Register API endpoints FIRST (more specific paths must come first)
-            httpServer.createContext("/api/query", new QueryHandler(nlpService, agentService, dbService, useAgentMode));
-            httpServer.createContext("/api/stats", new StatsHandler(dbService));
+            QueryHandler queryHandler = new QueryHandler(nlpService, agentService, dbService, useAgentMode,
+                queryLimiter, config.busyRetryAfterSeconds);
+            jobs = new JobManager(queryHandler::execute, config.jobWorkers, config.jobMaxQueued,
+                TimeUnit.SECONDS.toMillis(config.jobResultTtlSeconds));
+            register("/api/query/stream", new StreamHandler(queryHandler, useAgentMode));
+            register("/api/query/batch", new BatchHandler(queryHandler, dbService, useAgentMode,
+                config.batchMaxSize, config.batchParallelism));
+            register("/api/query", queryHandler);
+            register("/api/jobs", new JobsHandler(jobs, useAgentMode, config.busyRetryAfterSeconds));
+            register("/api/stats", new StatsHandler(dbService));
+            register("/metrics", new MetricsHandler());
+            registerMetrics();
             
             // Serve frontend HTML as catch-all (less specific path comes last)
-            httpServer.createContext("/", exchange -> serveFile(exchange, "index.html", "text/html"));
+            assets = new StaticAssetCache(List.of("index.html"),
+                config.webAssetDevDir.isEmpty() ? null : Paths.get(config.webAssetDevDir),
+                config.webAssetMaxAgeSeconds);
+            assets.startWatching();
+            register("/", exchange -> assets.serve(exchange, "index.html"));
             
-            httpServer.setExecutor(null); // Default executor
+            executor = QueryServer.newExecutor(config.webExecutorMode, config.webThreadPoolSize, "web-request-");
+            httpServer.setExecutor(executor);
             httpServer.start();
             
             String mode = useAgentMode ? "Agent (MCP)" : "Traditional";
-            logger.info("HTTP Server started on port {} in {} mode", port, mode);
+            if (config.webExecutorMode == ServerConfig.ExecutorMode.VIRTUAL) {
+                logger.info("HTTP Server started on port {} in {} mode with virtual threads (max concurrent requests {})",
+                        getPort(), mode, config.webMaxConcurrentRequests);
+            } else {
+                logger.info("HTTP Server started on port {} in {} mode with thread pool size {} (max concurrent requests {})",
+                        getPort(), mode, config.webThreadPoolSize, config.webMaxConcurrentRequests);
+            }
             
         } catch (IOException e) {
             logger.error("Error starting HTTP server", e);
@@ -75,54 +141,167 @@ public class WebServer {
     }
     
     /**
-     * Serve a static file
+     * Create a context whose requests pass admission control and are counted while in flight
      */
-    private void serveFile(HttpExchange exchange, String filename, String contentType) throws IOException {
-        try {
-            byte[] fileContent = Files.readAllBytes(
-                Paths.get("src/main/resources/" + filename)
-            );
-            
-            exchange.getResponseHeaders().set("Content-Type", contentType);
-            exchange.sendResponseHeaders(200, fileContent.length);
-            
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(fileContent);
+    private HttpContext register(String path, HttpHandler handler) {
+        HttpContext context = httpServer.createContext(path, handler);
+        StageMetrics stage = Metrics.stage("http", "path", path);
+        context.getFilters().add(new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                exchange.setAttribute(ResponseCompressor.ATTRIBUTE, compressor);
+                if (!admission.tryAdmit()) {
+                    rejectBusy(exchange);
+                    return;
+                }
+                boolean started = false;
+                long start = stage.begin();
+                try {
+                    // No queue: an admitted request always has a permit waiting
+                    admission.awaitTurn();
+                    started = true;
+                    chain.doFilter(exchange);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    exchange.close();
+                } finally {
+                    admission.release(started);
+                    // Response code is -1 when the handler failed before sending headers
+                    int status = exchange.getResponseCode();
+                    stage.end(start, status > 0 && status < 500);
+                }
             }
-        } catch (IOException e) {
-            logger.error("Error serving file: {}", filename, e);
-            String response = "404 Not Found";
-            exchange.sendResponseHeaders(404, response.length());
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
+            
+            @Override
+            public String description() {
+                return "Concurrency cap, in-flight request counter, latency metrics and response compression";
             }
+        });
+        return context;
+    }
+    
+    /**
+     * Export admission and job counters, read when /metrics is scraped
+     */
+    private void registerMetrics() {
+        Metrics.counter("http_admitted_total", "HTTP requests admitted by the concurrency cap",
+            () -> admission.getStats().admitted);
+        Metrics.counter("http_rejected_total", "HTTP requests answered 503 by the concurrency cap",
+            () -> admission.getStats().rejected);
+        Metrics.counter("jobs_submitted_total", "Asynchronous jobs accepted", () -> jobs.getStats().submitted);
+        Metrics.counter("jobs_rejected_total", "Asynchronous jobs refused because the queue was full",
+            () -> jobs.getStats().rejected);
+        Metrics.counter("jobs_failed_total", "Asynchronous jobs that failed", () -> jobs.getStats().failed);
+        Metrics.gauge("jobs_running", "Asynchronous jobs currently running", () -> jobs.getStats().running);
+        Metrics.gauge("jobs_queued", "Asynchronous jobs waiting for a worker", () -> jobs.getStats().queued);
+        if (queryLimiter != null) {
+            Metrics.gauge("query_concurrency_limit", "Current adaptive limit on concurrent queries",
+                () -> queryLimiter.getStats().limit);
+            Metrics.gauge("query_in_flight", "Queries currently holding an adaptive limiter slot",
+                () -> queryLimiter.getStats().inFlight);
+            Metrics.counter("query_shed_total", "Queries shed by the adaptive limiter",
+                () -> queryLimiter.getStats().rejected);
+        }
+        if (useAgentMode) {
+            Metrics.counter("queries_coalesced_total", "Agent queries answered by joining an identical in-flight query",
+                () -> agentService.getCoalescingStats().coalesced);
+        } else if (nlpService != null) {
+            Metrics.counter("queries_coalesced_total", "NLP queries answered by joining an identical in-flight query",
+                () -> nlpService.getCoalescingStats().coalesced);
         }
     }
     
+    /**
+     * Answer 503 when WEB_MAX_CONCURRENT_REQUESTS are already being handled
+     */
+    private void rejectBusy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(config.busyRetryAfterSeconds));
+        JsonCodec.sendError(exchange, 503, "Server busy");
+    }
+    
     /**
      * Stop the HTTP server
+     * Closes the listener at once, then waits for in-flight exchanges and then background jobs,
+     * both within one DRAIN_TIMEOUT_SECONDS budget
      */
     public void stop() {
         if (httpServer != null) {
-            httpServer.stop(0);
-            logger.info("HTTP Server stopped");
+            logger.info("Draining HTTP server: {} requests in flight (budget {} s)",
+                    getInFlightRequests(), config.drainTimeoutSeconds);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.drainTimeoutSeconds);
+            httpServer.stop(config.drainTimeoutSeconds);
+            if (getInFlightRequests() > 0) {
+                logger.warn("Drain budget exceeded with {} requests still in flight", getInFlightRequests());
+            }
+            executor.shutdownNow();
+            assets.stop();
+            // Exchanges may still submit jobs, so jobs drain second, in whatever time is left
+            jobs.stop(Math.max(0, deadline - System.nanoTime()));
+            httpServer = null;
+            AdmissionController.AdmissionStats stats = admission.getStats();
+            logger.info("HTTP Server stopped ({} requests served, {} rejected busy)", stats.admitted, stats.rejected);
         }
     }
     
+    /**
+     * Number of HTTP requests currently being handled
+     */
+    public int getInFlightRequests() {
+        return admission.getStats().inFlight;
+    }
+    
+    /**
+     * Requests admitted and rejected by the concurrency cap, and current occupancy
+     */
+    public AdmissionController.AdmissionStats getAdmissionStats() {
+        return admission.getStats();
+    }
+    
+    /**
+     * Adaptive query limit and counters, or null when QUERY_LIMIT_MAX is 0
+     */
+    public AdaptiveLimiter.LimiterStats getQueryLimiterStats() {
+        return queryLimiter != null ? queryLimiter.getStats() : null;
+    }
+    
+    /**
+     * Asynchronous job counters, or null before start()
+     */
+    public JobManager.JobStats getJobStats() {
+        return jobs != null ? jobs.getStats() : null;
+    }
+    
+    /**
+     * Port the server is bound to (useful when WEB_PORT is 0)
+     */
+    public int getPort() {
+        return httpServer != null ? httpServer.getAddress().getPort() : port;
+    }
+    
     /**
      * Handler for query API
+     * POST /api/query passes through the adaptive concurrency limit (when enabled): queries
+     * beyond the current limit are answered 503 with Retry-After before their body is read.
+     * /api/query/stream shares the limit the same way, and each query of a batch takes its
+     * own slot. Jobs do not: JOB_WORKERS already caps how many run at once, and a job that
+     * was answered 202 should not be shed later
      */
     private static class QueryHandler implements HttpHandler {
         private final NLPService nlpService;
         private final AgentNLPService agentService;
         private final DatabaseService dbService;
         private final boolean useAgentMode;
+        private final AdaptiveLimiter limiter;
+        private final int retryAfterSeconds;
         
-        QueryHandler(NLPService nlpService, AgentNLPService agentService, DatabaseService dbService, boolean useAgentMode) {
+        QueryHandler(NLPService nlpService, AgentNLPService agentService, DatabaseService dbService, boolean useAgentMode,
+                     AdaptiveLimiter limiter, int retryAfterSeconds) {
             this.nlpService = nlpService;
             this.agentService = agentService;
             this.dbService = dbService;
             this.useAgentMode = useAgentMode;
+            this.limiter = limiter;
+            this.retryAfterSeconds = retryAfterSeconds;
         }
         
         @Override
@@ -138,66 +317,519 @@ public class WebServer {
             }
             
             if ("POST".equals(exchange.getRequestMethod())) {
+                if (!admit(exchange)) {
+                    return;
+                }
+                long start = System.nanoTime();
+                boolean ok = false;
                 try {
-                    // Read request body
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8);
-                    BufferedReader br = new BufferedReader(isr);
-                    StringBuilder body = new StringBuilder();
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        body.append(line);
+                    String query = readQuery(exchange);
+                    if (query == null) {
+                        return;
                     }
                     
-                    // Simple JSON parsing (in production use proper JSON library)
-                    String query = extractJsonField(body.toString(), "query");
+                    QueryProtocol.QueryResult result = execute(query);
+                    ok = result.success;
                     
-                    long startTime = System.currentTimeMillis();
-                    String response;
-                    
-                    // Use agent mode if available, otherwise use traditional NLP
-                    if (useAgentMode && agentService != null) {
-                        response = agentService.processQueryWithAgent(query);
-                        logger.debug("Query processed with AgentNLPService");
-                    } else if (nlpService != null) {
-                        response = nlpService.processQuery(query);
-                        logger.debug("Query processed with NLPService");
-                    } else {
-                        throw new Exception("No NLP service available");
-                    }
-                    
-                    long processingTime = System.currentTimeMillis() - startTime;
-                    
-                    try {
-                        dbService.saveQueryResult(query, response, processingTime);
-                    } catch (Exception e) {
-                        logger.warn("Failed to save query result to database: {}", e.getMessage());
-                        // Continue even if database save fails
-                    }
-                    
-                    String jsonResponse = String.format(
-                        "{\"response\": \"%s\", \"processingTime\": %d, \"mode\": \"%s\"}",
-                        escapeJson(response),
-                        processingTime,
-                        useAgentMode ? "agent" : "traditional"
-                    );
-                    
-                    exchange.getResponseHeaders().set("Content-Type", "application/json");
-                    exchange.sendResponseHeaders(200, jsonResponse.length());
-                    
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(jsonResponse.getBytes());
-                    }
+                    JsonCodec.send(exchange, 200, json -> json.beginObject()
+                        .name("response").value(result.response)
+                        .name("processingTime").value(result.processingTimeMs)
+                        .name("mode").value(useAgentMode ? "agent" : "traditional")
+                        .endObject());
                 } catch (Exception e) {
                     logger.error("Error handling query request", e);
-                    String errorResponse = "{\"error\": \"Internal server error\"}";
-                    exchange.getResponseHeaders().set("Content-Type", "application/json");
-                    exchange.sendResponseHeaders(500, errorResponse.length());
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(errorResponse.getBytes());
+                    JsonCodec.sendError(exchange, 500, "Internal server error");
+                } finally {
+                    release(start, ok);
+                }
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        }
+        
+        /**
+         * Take a limiter slot for a query, or answer 503 with Retry-After when the limit is reached
+         */
+        boolean admit(HttpExchange exchange) throws IOException {
+            if (limiter != null && !limiter.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                JsonCodec.sendError(exchange, 503, "Server overloaded");
+                return false;
+            }
+            return true;
+        }
+        
+        /**
+         * Take a limiter slot without an exchange to answer
+         */
+        boolean tryAcquire() {
+            return limiter == null || limiter.tryAcquire();
+        }
+        
+        /**
+         * Give back a slot taken with admit() or tryAcquire(); only successful queries are sampled
+         */
+        void release(long startNanos, boolean success) {
+            if (limiter != null) {
+                limiter.release(System.nanoTime() - startNanos, success);
+            }
+        }
+        
+        /**
+         * Run a query with the agent or NLP service and store the result
+         */
+        QueryProtocol.QueryResult execute(String query) throws Exception {
+            return execute(query, QueryProgressListener.NONE);
+        }
+        
+        /**
+         * Run a query, reporting progress to the listener; in traditional mode the
+         * completion is streamed so the listener receives it chunk by chunk
+         */
+        QueryProtocol.QueryResult execute(String query, QueryProgressListener listener) throws Exception {
+            QueryProtocol.QueryResult result = answer(query, listener);
+            
+            try {
+                dbService.saveQueryResult(query, result.response, result.processingTimeMs);
+            } catch (Exception e) {
+                logger.warn("Failed to save query result to database: {}", e.getMessage());
+                // Continue even if database save fails
+            }
+            return result;
+        }
+        
+        /**
+         * Run a query without storing it (batches store all their results at once)
+         */
+        QueryProtocol.QueryResult answer(String query, QueryProgressListener listener) throws Exception {
+            long startTime = System.currentTimeMillis();
+            String response;
+            
+            // Use agent mode if available, otherwise use traditional NLP
+            if (useAgentMode && agentService != null) {
+                // Without a listener, identical concurrent queries share one agent run
+                response = listener == QueryProgressListener.NONE
+                    ? agentService.processQueryWithAgent(query)
+                    : agentService.processQueryWithAgent(query, listener);
+                logger.debug("Query processed with AgentNLPService");
+            } else if (nlpService != null) {
+                response = listener == QueryProgressListener.NONE
+                    ? nlpService.processQuery(query)
+                    : nlpService.processQueryStreaming(query, listener::onPartialOutput);
+                logger.debug("Query processed with NLPService");
+            } else {
+                throw new Exception("No NLP service available");
+            }
+            
+            return new QueryProtocol.QueryResult(response, System.currentTimeMillis() - startTime);
+        }
+    }
+    
+    /**
+     * Handler for streaming query progress as Server-Sent Events
+     * GET /api/query/stream?query=... (for EventSource) or POST with the /api/query body.
+     * Events: "tools" (iteration, tools), "tool_result" (tool, success, result),
+     * "chunk" (text), then "done" (response, processingTime, mode) or "error".
+     * Held to the same adaptive limit as /api/query
+     */
+    private static class StreamHandler implements HttpHandler {
+        private final QueryHandler queryHandler;
+        private final boolean useAgentMode;
+        
+        StreamHandler(QueryHandler queryHandler, boolean useAgentMode) {
+            this.queryHandler = queryHandler;
+            this.useAgentMode = useAgentMode;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            // Handle CORS preflight
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "POST, GET, OPTIONS");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type");
+            
+            String method = exchange.getRequestMethod();
+            if ("OPTIONS".equals(method)) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            } else if (!"GET".equals(method) && !"POST".equals(method)) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!queryHandler.admit(exchange)) {
+                return;
+            }
+            long start = System.nanoTime();
+            boolean ok = false;
+            try {
+                ok = stream(exchange, method);
+            } finally {
+                queryHandler.release(start, ok);
+            }
+        }
+        
+        /**
+         * Answer one query as events
+         * @return whether the query succeeded
+         */
+        private boolean stream(HttpExchange exchange, String method) throws IOException {
+            String query;
+            if ("GET".equals(method)) {
+                query = queryParameter(exchange, "query");
+                if (query == null || query.isBlank()) {
+                    JsonCodec.sendError(exchange, 400, "Missing \"query\" parameter");
+                    return false;
+                }
+            } else {
+                query = readQuery(exchange);
+                if (query == null) {
+                    return false;
+                }
+            }
+            
+            try (SseWriter events = new SseWriter(exchange)) {
+                try {
+                    QueryProtocol.QueryResult result = queryHandler.execute(query, new QueryProgressListener() {
+                        @Override
+                        public void onToolsSelected(int iteration, List<String> tools) {
+                            events.event("tools", json -> {
+                                json.beginObject().name("iteration").value(iteration).name("tools").beginArray();
+                                for (String tool : tools) {
+                                    json.value(tool);
+                                }
+                                json.endArray().endObject();
+                            });
+                        }
+                        
+                        @Override
+                        public void onToolResult(String tool, boolean success, String result) {
+                            events.event("tool_result", json -> json.beginObject()
+                                .name("tool").value(tool)
+                                .name("success").value(success)
+                                .name("result").value(result)
+                                .endObject());
+                        }
+                        
+                        @Override
+                        public void onPartialOutput(String text) {
+                            events.event("chunk", json -> json.beginObject().name("text").value(text).endObject());
+                        }
+                    });
+                    events.event("done", json -> json.beginObject()
+                        .name("response").value(result.response)
+                        .name("processingTime").value(result.processingTimeMs)
+                        .name("mode").value(useAgentMode ? "agent" : "traditional")
+                        .endObject());
+                    return result.success;
+                } catch (Exception e) {
+                    logger.error("Error handling streaming query request", e);
+                    events.event("error", json -> json.beginObject().name("error").value("Internal server error").endObject());
+                    return false;
+                }
+            }
+        }
+        
+        private static String queryParameter(HttpExchange exchange, String name) {
+            String rawQuery = exchange.getRequestURI().getRawQuery();
+            if (rawQuery == null) {
+                return null;
+            }
+            for (String pair : rawQuery.split("&")) {
+                int separator = pair.indexOf('=');
+                if (separator > 0 && pair.substring(0, separator).equals(name)) {
+                    return URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Handler for batch queries
+     * POST /api/query/batch with {"queries": [...]} runs at most BATCH_PARALLELISM queries at
+     * once, stores every result in one database batch and answers a JSON array in request
+     * order. With "Accept: application/x-ndjson" each result is instead streamed as one
+     * JSON line as soon as it finishes (completion order, identified by "index"). Each query
+     * takes its own adaptive limiter slot; one that finds none free fails with "Server overloaded"
+     */
+    private static class BatchHandler implements HttpHandler {
+        private static final String NDJSON = "application/x-ndjson";
+        private static final QueryProtocol.QueryResult OVERLOADED = new QueryProtocol.QueryResult("Server overloaded", 0);
+        
+        private final QueryHandler queryHandler;
+        private final DatabaseService dbService;
+        private final boolean useAgentMode;
+        private final int maxBatchSize;
+        private final int parallelism;
+        
+        BatchHandler(QueryHandler queryHandler, DatabaseService dbService, boolean useAgentMode,
+                     int maxBatchSize, int parallelism) {
+            this.queryHandler = queryHandler;
+            this.dbService = dbService;
+            this.useAgentMode = useAgentMode;
+            this.maxBatchSize = maxBatchSize;
+            this.parallelism = parallelism;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            // Handle CORS preflight
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "POST, OPTIONS");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type, Accept");
+            
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            
+            List<String> queries;
+            try {
+                queries = JsonCodec.readStringArrayField(exchange.getRequestBody(), "queries", maxBatchSize);
+            } catch (IllegalArgumentException e) {
+                JsonCodec.sendError(exchange, 400, e.getMessage());
+                return;
+            }
+            if (queries == null || queries.isEmpty()) {
+                JsonCodec.sendError(exchange, 400, "Request body must contain a non-empty \"queries\" array");
+                return;
+            }
+            
+            String accept = exchange.getRequestHeaders().getFirst("Accept");
+            if (accept != null && accept.contains(NDJSON)) {
+                streamBatch(exchange, queries);
+            } else {
+                QueryProtocol.QueryResult[] results = run(queries, null);
+                JsonCodec.send(exchange, 200, json -> {
+                    json.beginArray();
+                    for (int i = 0; i < results.length; i++) {
+                        writeResult(json, i, results[i]);
+                    }
+                    json.endArray();
+                });
+            }
+        }
+        
+        private void streamBatch(HttpExchange exchange, List<String> queries) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", NDJSON + "; charset=utf-8");
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    ResponseCompressor.open(exchange, 200, true), StandardCharsets.UTF_8))) {
+                run(queries, (index, result) -> {
+                    synchronized (out) {
+                        try {
+                            JsonWriter json = new JsonWriter(out);
+                            writeResult(json, index, result);
+                            json.flush();
+                            out.write('\n');
+                            out.flush();
+                        } catch (IOException e) {
+                            logger.debug("Batch client disconnected: {}", e.getMessage());
+                        }
                     }
+                });
+            }
+        }
+        
+        /**
+         * Run the queries with bounded parallelism and store all results in one batch
+         * @param onResult called as each query finishes, or null
+         */
+        private QueryProtocol.QueryResult[] run(List<String> queries, BiConsumer<Integer, QueryProtocol.QueryResult> onResult) {
+            QueryProtocol.QueryResult[] results = new QueryProtocol.QueryResult[queries.size()];
+            Semaphore permits = new Semaphore(parallelism);
+            
+            try (ExecutorService batchExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < queries.size(); i++) {
+                    permits.acquireUninterruptibly();
+                    int index = i;
+                    batchExecutor.execute(() -> {
+                        try {
+                            results[index] = answer(queries.get(index));
+                        } catch (Exception e) {
+                            logger.error("Error processing batch query {}", index, e);
+                        } finally {
+                            permits.release();
+                        }
+                        if (onResult != null) {
+                            onResult.accept(index, results[index]);
+                        }
+                    });
+                }
+            }
+            
+            List<DatabaseService.QueryRecord> records = new ArrayList<>(queries.size());
+            LocalDateTime now = LocalDateTime.now();
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null && results[i] != OVERLOADED) {
+                    records.add(new DatabaseService.QueryRecord(0, queries.get(i), results[i].response, now, results[i].processingTimeMs));
                 }
+            }
+            dbService.saveQueryResults(records);
+            logger.info("Web batch of {} queries processed", queries.size());
+            return results;
+        }
+        
+        /**
+         * Answer one query under its own limiter slot, or OVERLOADED when none is free
+         */
+        private QueryProtocol.QueryResult answer(String query) throws Exception {
+            if (!queryHandler.tryAcquire()) {
+                return OVERLOADED;
+            }
+            long start = System.nanoTime();
+            boolean ok = false;
+            try {
+                QueryProtocol.QueryResult result = queryHandler.answer(query, QueryProgressListener.NONE);
+                ok = result.success;
+                return result;
+            } finally {
+                queryHandler.release(start, ok);
+            }
+        }
+        
+        /**
+         * One batch element: the result, or an error when the query failed or was shed
+         */
+        private void writeResult(JsonWriter json, int index, QueryProtocol.QueryResult result) throws IOException {
+            json.beginObject().name("index").value(index);
+            if (result == OVERLOADED) {
+                json.name("error").value(result.response);
+            } else if (result != null) {
+                json.name("response").value(result.response)
+                    .name("processingTime").value(result.processingTimeMs)
+                    .name("mode").value(useAgentMode ? "agent" : "traditional");
             } else {
-                exchange.sendResponseHeaders(405, 0);
+                json.name("error").value("Error processing query");
+            }
+            json.endObject();
+        }
+    }
+    
+    /**
+     * Handler for the asynchronous job API
+     * POST /api/jobs queues a query and answers 202 with its id; GET /api/jobs/{id} reports
+     * status and, once finished, the result
+     */
+    private static class JobsHandler implements HttpHandler {
+        private static final String PREFIX = "/api/jobs/";
+        
+        private final JobManager jobs;
+        private final boolean useAgentMode;
+        private final int retryAfterSeconds;
+        
+        JobsHandler(JobManager jobs, boolean useAgentMode, int retryAfterSeconds) {
+            this.jobs = jobs;
+            this.useAgentMode = useAgentMode;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            // Handle CORS preflight
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "POST, GET, OPTIONS");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type");
+            
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            
+            if ("OPTIONS".equals(method)) {
+                exchange.sendResponseHeaders(204, -1);
+            } else if ("POST".equals(method) && (path.equals("/api/jobs") || path.equals(PREFIX))) {
+                submit(exchange);
+            } else if ("GET".equals(method) && path.startsWith(PREFIX) && path.length() > PREFIX.length()) {
+                report(exchange, path.substring(PREFIX.length()));
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        }
+        
+        private void submit(HttpExchange exchange) throws IOException {
+            String query = readQuery(exchange);
+            if (query == null) {
+                return;
+            }
+            
+            JobManager.Job job = jobs.submit(query);
+            if (job == null) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                JsonCodec.sendError(exchange, 503, "Job queue full");
+                return;
+            }
+            
+            exchange.getResponseHeaders().set("Location", PREFIX + job.id);
+            JsonCodec.send(exchange, 202, json -> json.beginObject()
+                .name("id").value(job.id)
+                .name("status").value("queued")
+                .endObject());
+        }
+        
+        private void report(HttpExchange exchange, String id) throws IOException {
+            JobManager.Job job = jobs.get(id);
+            if (job == null) {
+                JsonCodec.sendError(exchange, 404, "Unknown or expired job: " + id);
+                return;
+            }
+            
+            JobManager.Status status = job.status;
+            JsonCodec.send(exchange, 200, json -> {
+                json.beginObject()
+                    .name("id").value(job.id)
+                    .name("status").value(status.name().toLowerCase(Locale.ROOT));
+                if (status == JobManager.Status.SUCCEEDED) {
+                    json.name("response").value(job.response)
+                        .name("processingTime").value(job.processingTimeMs)
+                        .name("mode").value(useAgentMode ? "agent" : "traditional");
+                } else if (status == JobManager.Status.FAILED) {
+                    json.name("error").value(job.error);
+                }
+                json.endObject();
+            });
+        }
+    }
+    
+    /**
+     * Read the "query" field of a JSON request body
+     * @return the query, or null after answering 400 for a malformed body or missing query
+     */
+    private static String readQuery(HttpExchange exchange) throws IOException {
+        String query;
+        try {
+            query = JsonCodec.readStringField(exchange.getRequestBody(), "query");
+        } catch (IllegalArgumentException e) {
+            JsonCodec.sendError(exchange, 400, e.getMessage());
+            return null;
+        }
+        if (query == null || query.isBlank()) {
+            JsonCodec.sendError(exchange, 400, "Request body must contain a \"query\" string");
+            return null;
+        }
+        return query;
+    }
+    
+    /**
+     * Handler for metrics in the Prometheus text format
+     * GET /metrics: per-stage latency quantiles, error and in-flight counts, plus the
+     * admission, job and coalescing counters
+     */
+    private static class MetricsHandler implements HttpHandler {
+        private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    ResponseCompressor.open(exchange, 200, false), StandardCharsets.UTF_8))) {
+                Metrics.writePrometheus(out);
             }
         }
     }
@@ -228,56 +860,17 @@ public class WebServer {
                 try {
                     DatabaseService.DatabaseStats stats = dbService.getStats();
                     
-                    String jsonResponse = String.format(
-                        "{\"totalQueries\": %d, \"averageProcessingTimeMs\": %.2f}",
-                        stats.totalQueries,
-                        stats.averageProcessingTimeMs
-                    );
-                    
-                    exchange.getResponseHeaders().set("Content-Type", "application/json");
-                    exchange.sendResponseHeaders(200, jsonResponse.length());
-                    
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(jsonResponse.getBytes());
-                    }
+                    JsonCodec.send(exchange, 200, json -> json.beginObject()
+                        .name("totalQueries").value(stats.totalQueries)
+                        .name("averageProcessingTimeMs").value(Math.round(stats.averageProcessingTimeMs * 100) / 100.0)
+                        .endObject());
                 } catch (Exception e) {
                     logger.error("Error handling stats request", e);
-                    String errorResponse = "{\"error\": \"Internal server error\"}";
-                    exchange.getResponseHeaders().set("Content-Type", "application/json");
-                    exchange.sendResponseHeaders(500, errorResponse.length());
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(errorResponse.getBytes());
-                    }
+                    JsonCodec.sendError(exchange, 500, "Internal server error");
                 }
             } else {
-                exchange.sendResponseHeaders(405, 0);
+                exchange.sendResponseHeaders(405, -1);
             }
         }
     }
-    
-    /**
-     * Extract field value from simple JSON
-     */
-    private static String extractJsonField(String json, String field) {
-        String pattern = "\"" + field + "\":\"";
-        int start = json.indexOf(pattern);
-        if (start == -1) return "";
-        
-        start += pattern.length();
-        int end = json.indexOf("\"", start);
-        return end > start ? json.substring(start, end) : "";
-    }
-    
-    /**
-     * Escape special characters for JSON
-     */
-    private static String escapeJson(String input) {
-        if (input == null) return "";
-        return input.replace("\"", "\\\"")
-                   .replace("\n", "\\n")
-                   .replace("\r", "\\r")
-                   .replace("\t", "\\t")
-                   .replace("\b", "\\b")
-                   .replace("\f", "\\f");
-    }
 }
@@ -0,0 +1,84 @@
+package com.example.metrics;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Latency Histogram Tests")
+public class LatencyHistogramTests {
+
+    @Test
+    @DisplayName("Buckets should be contiguous and bound the relative error")
+    void testBucketBounds() {
+        for (long micros = 0; micros < 1_000_000; micros += 7) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(micros <= LatencyHistogram.upperBoundMicros(bucket), "upper bound of " + micros);
+            if (bucket > 0) {
+                assertTrue(micros > LatencyHistogram.upperBoundMicros(bucket - 1), "lower bound of " + micros);
+            }
+            assertTrue(LatencyHistogram.upperBoundMicros(bucket) <= micros * 1.125 + 1, "error for " + micros);
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    @DisplayName("Quantiles should come from the recorded distribution")
+    void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.quantileSeconds(0.5));
+
+        // 1..100 ms
+        for (int ms = 1; ms <= 100; ms++) {
+            histogram.record(ms * 1_000_000L);
+        }
+
+        assertEquals(100, histogram.count());
+        assertEquals(5.05, histogram.sumSeconds(), 1e-9);
+        assertEquals(0.050, histogram.quantileSeconds(0.5), 0.050 * 0.125);
+        assertEquals(0.095, histogram.quantileSeconds(0.95), 0.095 * 0.125);
+        assertEquals(0.099, histogram.quantileSeconds(0.99), 0.099 * 0.125);
+    }
+
+    @Test
+    @DisplayName("Quantiles should only cover the last one to two windows")
+    void testWindowRotation() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long start = System.nanoTime();
+        histogram.record(100_000_000L, start);
+
+        // One window later the old samples are still reported alongside new ones
+        long oneWindow = start + LatencyHistogram.WINDOW_NANOS;
+        histogram.record(1_000_000L, oneWindow);
+        assertEquals(0.100, histogram.quantileSeconds(1, oneWindow), 0.100 * 0.125);
+
+        // After an idle gap of more than two windows nothing old is left
+        long afterGap = oneWindow + 3 * LatencyHistogram.WINDOW_NANOS;
+        assertEquals(0, histogram.quantileSeconds(0.5, afterGap));
+        histogram.record(5_000_000L, afterGap);
+        assertEquals(0.005, histogram.quantileSeconds(1, afterGap), 0.005 * 0.125);
+        assertEquals(3, histogram.count());
+    }
+
+    @Test
+    @DisplayName("Prometheus output should include stage samples and callbacks")
+    void testPrometheusOutput() throws Exception {
+        StageMetrics stage = Metrics.stage("test_stage", "kind", "a\"b");
+        long start = stage.begin();
+        stage.end(start, false);
+        Metrics.gauge("test_gauge", "A test gauge", () -> 42);
+
+        StringWriter out = new StringWriter();
+        Metrics.writePrometheus(out);
+        String text = out.toString();
+
+        assertTrue(text.contains("# TYPE scaling_potato_stage_duration_seconds summary"), text);
+        assertTrue(text.contains("scaling_potato_stage_duration_seconds_count{stage=\"test_stage\",kind=\"a\\\"b\"} 1"), text);
+        assertTrue(text.contains("scaling_potato_stage_errors_total{stage=\"test_stage\",kind=\"a\\\"b\"} 1"), text);
+        assertTrue(text.contains("scaling_potato_stage_error_ratio{stage=\"test_stage\",kind=\"a\\\"b\"} 1"), text);
+        assertTrue(text.contains("scaling_potato_stage_in_flight{stage=\"test_stage\",kind=\"a\\\"b\"} 0"), text);
+        assertTrue(text.contains("# TYPE scaling_potato_test_gauge gauge\nscaling_potato_test_gauge 42\n"), text);
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.nlp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Completion Cache Tests")
+public class CompletionCacheTests {
+
+    @Test
+    @DisplayName("Trivially different questions should share a key per model")
+    void testKeyNormalization() {
+        assertEquals(CompletionCache.key("m", "How do I grow potatoes?"),
+            CompletionCache.key("m", "  how do i   grow potatoes "));
+        assertNotEquals(CompletionCache.key("m", "How do I grow potatoes?"),
+            CompletionCache.key("other", "How do I grow potatoes?"));
+        assertNotEquals(CompletionCache.key("m", "grow potatoes"), CompletionCache.key("m", "grow tomatoes"));
+    }
+
+    @Test
+    @DisplayName("Hits, misses and evictions should be counted")
+    void testEvictionAndStats() {
+        // One entry per stripe
+        CompletionCache cache = new CompletionCache(16, 1_000_000, 60);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertEquals("value99", cache.get("key99"));
+        assertNull(cache.get("missing"));
+
+        CompletionCache.CacheStats stats = cache.getStats();
+        assertTrue(stats.entries <= 16, "entries: " + stats.entries);
+        assertEquals(100 - stats.entries, stats.evictions);
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.misses);
+    }
+
+    @Test
+    @DisplayName("Entries read again should survive a burst of one-off entries")
+    void testProtectedSegment() {
+        CompletionCache cache = new CompletionCache(16 * 4, 1_000_000, 60);
+        cache.put("popular", "answer");
+        assertEquals("answer", cache.get("popular"));
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put("one-off " + i, "value");
+        }
+        assertEquals("answer", cache.get("popular"));
+    }
+
+    @Test
+    @DisplayName("Weight bound should evict and skip oversized entries")
+    void testWeightBound() {
+        // 100 characters per stripe
+        CompletionCache cache = new CompletionCache(1000, 1600, 60);
+        cache.put("big", "x".repeat(200));
+        assertNull(cache.get("big"));
+
+        for (int i = 0; i < 200; i++) {
+            cache.put("k" + i, "y".repeat(40));
+        }
+        assertTrue(cache.getStats().weight <= 1600, "weight: " + cache.getStats().weight);
+        assertTrue(cache.getStats().evictions > 0);
+    }
+
+    @Test
+    @DisplayName("Entries should expire after their TTL")
+    void testExpiry() throws Exception {
+        CompletionCache cache = new CompletionCache(100, 1_000_000, 1);
+        cache.put("key", "value");
+        assertEquals("value", cache.get("key"));
+
+        Thread.sleep(1100);
+        assertNull(cache.get("key"));
+        assertEquals(1, cache.getStats().expirations);
+        assertEquals(0, cache.getStats().entries);
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.nlp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("LLM Client Tests")
+public class LLMClientTests {
+
+    private HttpServer stub;
+    private LLMClient client;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+        if (stub != null) {
+            stub.stop(0);
+        }
+    }
+
+    /**
+     * Start a local chat completions stub and a client pointed at it
+     */
+    private void startStub(HttpHandler handler, Duration requestTimeout) throws IOException {
+        stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.createContext("/v1/chat/completions", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            exchange.getRequestBody().readAllBytes();
+            handler.handle(exchange);
+        });
+        stub.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        stub.start();
+        client = new LLMClient("test-key", "http://localhost:" + stub.getAddress().getPort() + "/v1/",
+            Duration.ofSeconds(5), requestTimeout);
+    }
+
+    private static void reply(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    @Test
+    @DisplayName("Queries should reuse one pooled connection to the configured base URL")
+    void testConnectionReuse() throws Exception {
+        startStub(exchange -> {
+            assertEquals("Bearer test-key", exchange.getRequestHeaders().getFirst("Authorization"));
+            reply(exchange, "{\"answer\": 42}");
+        }, Duration.ofSeconds(5));
+        NLPService service = new NLPService(client, "gpt-3.5-turbo");
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("{\"answer\": 42}", service.processQuery("question " + i));
+        }
+        assertEquals(1, clientPorts.size(), "all queries should share one connection");
+    }
+
+    @Test
+    @DisplayName("Streamed completions should be read from the event stream")
+    void testStreaming() throws Exception {
+        startStub(exchange -> reply(exchange,
+            "data: {\"choices\":[{\"delta\":{\"content\":\"Hello\"}}]}\n\n" +
+            "data: {\"choices\":[{\"delta\":{\"content\":\" potato\"}}]}\n\n" +
+            "data: [DONE]\n\n"), Duration.ofSeconds(5));
+        NLPService service = new NLPService(client, "gpt-3.5-turbo");
+
+        List<String> chunks = new ArrayList<>();
+        assertEquals("Hello potato", service.processQueryStreaming("hi", chunks::add));
+        assertEquals(List.of("Hello", " potato"), chunks);
+    }
+
+    @Test
+    @DisplayName("A request slower than the timeout should fail instead of hanging")
+    void testRequestTimeout() throws Exception {
+        startStub(exchange -> {
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reply(exchange, "too late");
+        }, Duration.ofMillis(300));
+        NLPService service = new NLPService(client, "gpt-3.5-turbo");
+
+        String response = service.processQuery("slow");
+        assertTrue(response.startsWith("Error processing query"), response);
+    }
+
+    @Test
+    @DisplayName("Async queries should complete without blocking the caller")
+    void testAsyncQuery() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        startStub(exchange -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reply(exchange, "async answer");
+        }, Duration.ofSeconds(5));
+        NLPService service = new NLPService(client, "gpt-3.5-turbo");
+
+        CompletableFuture<String> answer = service.processQueryAsync("question");
+        assertFalse(answer.isDone());
+        release.countDown();
+        assertEquals("async answer", answer.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("Cancelling an async query should cancel it without breaking the client")
+    void testAsyncCancellation() throws Exception {
+        CountDownLatch received = new CountDownLatch(1);
+        startStub(exchange -> {
+            if (received.getCount() > 0) {
+                received.countDown();
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            reply(exchange, "answer");
+        }, Duration.ofSeconds(5));
+        NLPService service = new NLPService(client, "gpt-3.5-turbo");
+
+        CompletableFuture<String> answer = service.processQueryAsync("question");
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertTrue(answer.cancel(true));
+        assertTrue(answer.isCancelled());
+
+        // The client stays usable after an aborted request
+        assertEquals("answer", service.processQueryAsync("next").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("Cached completions should be served without another request")
+    void testCompletionCache() throws Exception {
+        startStub(exchange -> reply(exchange, "cached answer"), Duration.ofSeconds(5));
+        CompletionCache cache = new CompletionCache(100, 100_000, 60);
+        NLPService service = new NLPService(client, "gpt-3.5-turbo", cache);
+
+        assertEquals("cached answer", service.processQuery("How do I grow potatoes?"));
+        assertEquals("cached answer", service.processQuery("how do i grow potatoes"));
+        assertEquals("cached answer", service.processQueryAsync("HOW do I grow potatoes!").get(5, TimeUnit.SECONDS));
+
+        CompletionCache.CacheStats stats = service.getCacheStats();
+        assertEquals(2, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.entries);
+    }
+
+    @Test
+    @DisplayName("Reworded queries should be answered from the near-duplicate cache")
+    void testNearDuplicateCache() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        startStub(exchange -> reply(exchange, "answer " + requests.incrementAndGet()), Duration.ofSeconds(5));
+        NLPService service = new NLPService(client, "gpt-3.5-turbo", null,
+            new NearDuplicateCache(100, 60, 0.8, 0));
+
+        assertEquals("answer 1", service.processQuery("How do I grow potatoes?"));
+        assertEquals("answer 1", service.processQuery("Please, how do I grow potatoes"));
+        assertEquals("answer 1", service.processQueryAsync("Hi! How do I grow the potatoes").get(5, TimeUnit.SECONDS));
+        assertEquals("answer 2", service.processQuery("How do I store potatoes?"));
+        assertEquals(2, requests.get());
+        assertEquals(2, service.getNearCacheStats().nearHits);
+
+        // Audited near hits are answered afresh and compared
+        NLPService audited = new NLPService(client, "gpt-3.5-turbo", null,
+            new NearDuplicateCache(100, 60, 0.8, 1));
+        assertEquals("answer 3", audited.processQuery("How do I grow potatoes?"));
+        assertEquals("answer 4", audited.processQuery("Please, how do I grow potatoes"));
+        assertEquals(1, audited.getNearCacheStats().audits);
+        assertEquals(1, audited.getNearCacheStats().falseHits);
+    }
+
+    @Test
+    @DisplayName("Stored completions should be served after a restart")
+    void testPersistentStore(@TempDir Path directory) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        startStub(exchange -> reply(exchange, "answer " + requests.incrementAndGet()), Duration.ofSeconds(5));
+        try (PersistentCompletionStore store = new PersistentCompletionStore(directory, 1 << 16, 1 << 20, 60)) {
+            NLPService service = new NLPService(client, "gpt-3.5-turbo", new CompletionCache(100, 100_000, 60), null, store);
+            assertEquals("answer 1", service.processQuery("How do I grow potatoes?"));
+        }
+
+        // A fresh service with an empty memory cache, as after a restart
+        try (PersistentCompletionStore store = new PersistentCompletionStore(directory, 1 << 16, 1 << 20, 60)) {
+            CompletionCache cache = new CompletionCache(100, 100_000, 60);
+            NLPService service = new NLPService(client, "gpt-3.5-turbo", cache, null, store);
+            assertEquals("answer 1", service.processQuery("how do I grow potatoes"));
+            assertEquals("answer 1", service.processQueryAsync("How do I grow potatoes").get(5, TimeUnit.SECONDS));
+            assertEquals(1, service.getStoreStats().hits);
+            assertEquals(1, cache.getStats().hits);
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    @DisplayName("Invalid timeouts should be rejected")
+    void testInvalidTimeout() {
+        assertThrows(IllegalArgumentException.class,
+            () -> LLMClient.fromEnv(Map.of("LLM_REQUEST_TIMEOUT_SECONDS", "0")));
+        assertEquals("https://api.openai.com/v1/chat/completions",
+            LLMClient.fromEnv(Map.of()).getCompletionsUri().toString());
+    }
+}
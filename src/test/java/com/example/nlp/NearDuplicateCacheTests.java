@@ -0,0 +1,131 @@
+package com.example.nlp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Near-Duplicate Cache Tests")
+public class NearDuplicateCacheTests {
+
+    @Test
+    @DisplayName("Rewordings should match and different questions should not")
+    void testRephrasingMatches() {
+        NearDuplicateCache cache = new NearDuplicateCache(100, 60, 0.8, 0);
+        cache.put("m", "How do I grow potatoes?", "Plant seed potatoes in spring");
+
+        NearDuplicateCache.Match match = cache.lookup("m", "Hi, please: how do I grow the potatoes");
+        assertNotNull(match);
+        assertEquals("Plant seed potatoes in spring", match.completion);
+        assertEquals("How do I grow potatoes?", match.matchedQuery);
+        assertEquals(1.0, match.similarity);
+        assertFalse(match.audited);
+
+        assertNull(cache.lookup("m", "How do I grow tomatoes?"));
+        assertNull(cache.lookup("other", "How do I grow potatoes?"));
+
+        NearDuplicateCache.NearStats stats = cache.getStats();
+        assertEquals(3, stats.lookups);
+        assertEquals(1, stats.nearHits);
+        assertEquals(1, stats.entries);
+    }
+
+    @Test
+    @DisplayName("Questions differing in tense, operators or word order should not match")
+    void testDistinctQuestions() {
+        String[][] pairs = {
+            {"who is the president of France", "who was the president of France"},
+            {"what is 2+2", "what is 2*2"},
+            {"convert 10 USD to EUR", "convert 10 EUR to USD"},
+            {"should I water potatoes daily", "should I not water potatoes daily"},
+        };
+        NearDuplicateCache cache = new NearDuplicateCache(100, 60, 0.8, 0);
+        for (String[] pair : pairs) {
+            assertTrue(NearDuplicateCache.similarity(pair[0], pair[1]) < 0.8, pair[1]);
+            cache.put("m", pair[0], "answer to " + pair[0]);
+            assertNull(cache.lookup("m", pair[1]), pair[1]);
+        }
+
+        // Too short to compare safely
+        cache.put("m", "potato blight", "answer");
+        assertNull(cache.lookup("m", "Potato blight?"));
+    }
+
+    @Test
+    @DisplayName("The threshold should decide how much of a question may differ")
+    void testThreshold() {
+        String cached = "best soil mix for growing potatoes in containers";
+        String asked = "best soil mix for growing potatoes in raised beds";
+        double similarity = NearDuplicateCache.similarity(cached, asked);
+        assertTrue(similarity > 0.5 && similarity < 0.8, "similarity: " + similarity);
+
+        NearDuplicateCache strict = new NearDuplicateCache(100, 60, 0.8, 0);
+        NearDuplicateCache loose = new NearDuplicateCache(100, 60, 0.5, 0);
+        strict.put("m", cached, "answer");
+        loose.put("m", cached, "answer");
+        assertNull(strict.lookup("m", asked));
+        assertNotNull(loose.lookup("m", asked));
+    }
+
+    @Test
+    @DisplayName("Audits should count near hits whose cached answer disagrees")
+    void testAudit() {
+        NearDuplicateCache cache = new NearDuplicateCache(100, 60, 0.5, 1);
+        cache.put("m", "early potato blight on leaf and stem symptoms", "Dark lesions on the leaves and stems");
+
+        NearDuplicateCache.Match match = cache.lookup("m", "early potato blight on leaf and stem treatment");
+        assertNotNull(match);
+        assertTrue(match.audited);
+        assertFalse(cache.audit(match, "Dark lesions appear on the leaves and stems"));
+        assertTrue(cache.audit(match, "Remove infected plants and apply a copper fungicide"));
+
+        NearDuplicateCache.NearStats stats = cache.getStats();
+        assertEquals(2, stats.audits);
+        assertEquals(1, stats.falseHits);
+    }
+
+    @Test
+    @DisplayName("Audits should compare the message content of chat completion bodies")
+    void testAuditResponseBodies() {
+        NearDuplicateCache cache = new NearDuplicateCache(100, 60, 0.5, 1);
+        cache.put("m", "early potato blight on leaf and stem symptoms",
+            responseBody("chatcmpl-1", "Dark lesions appear on the leaves and stems"));
+
+        NearDuplicateCache.Match match = cache.lookup("m", "early potato blight on leaf and stem treatment");
+        assertNotNull(match);
+        assertTrue(cache.audit(match, responseBody("chatcmpl-2", "Remove infected plants and apply a copper fungicide")));
+        assertFalse(cache.audit(match, responseBody("chatcmpl-3", "Dark lesions appear on the leaves and stems")));
+        assertEquals(1, cache.getStats().falseHits);
+    }
+
+    private static String responseBody(String id, String content) {
+        return "{\"id\": \"" + id + "\", \"object\": \"chat.completion\", \"created\": 1760000000, "
+            + "\"model\": \"gpt-3.5-turbo-0125\", \"choices\": [{\"index\": 0, \"message\": "
+            + "{\"role\": \"assistant\", \"content\": \"" + content + "\"}, \"logprobs\": null, "
+            + "\"finish_reason\": \"stop\"}], \"usage\": {\"prompt_tokens\": 18, \"completion_tokens\": 9, "
+            + "\"total_tokens\": 27}, \"system_fingerprint\": null}";
+    }
+
+    @Test
+    @DisplayName("Evicted and replaced entries should leave the index")
+    void testEviction() {
+        NearDuplicateCache cache = new NearDuplicateCache(2, 60, 0.8, 0);
+        cache.put("m", "how to grow potatoes", "old");
+        cache.put("m", "How to grow potatoes!", "new");
+        assertEquals("new", cache.lookup("m", "how to grow potatoes").completion);
+
+        cache.put("m", "how to store carrots", "cool and dark");
+        cache.put("m", "when to water tomatoes", "daily");
+        assertNull(cache.lookup("m", "how to grow potatoes"));
+        assertEquals(2, cache.getStats().entries);
+    }
+
+    @Test
+    @DisplayName("Invalid thresholds should be rejected and the cache should be opt-in")
+    void testInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new NearDuplicateCache(100, 60, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new NearDuplicateCache(100, 60, 0.8, 1.5));
+        assertNull(NearDuplicateCache.fromEnv(java.util.Map.of()));
+        assertNotNull(NearDuplicateCache.fromEnv(java.util.Map.of("LLM_NEAR_CACHE_MAX_ENTRIES", "100")));
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.nlp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Persistent Completion Store Tests")
+public class PersistentCompletionStoreTests {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path directory;
+
+    private PersistentCompletionStore open(long maxDiskBytes) throws IOException {
+        return new PersistentCompletionStore(directory, SEGMENT_BYTES, maxDiskBytes, 3600);
+    }
+
+    @Test
+    @DisplayName("Completions should survive reopening the store")
+    void testWarmStart() throws Exception {
+        try (PersistentCompletionStore store = open(1 << 20)) {
+            for (int i = 0; i < 500; i++) {
+                store.put("question " + i, "answer " + i);
+            }
+            store.put("question 7", "better answer");
+            store.put("unicode", "Kartoffeln — pommes de terre 🥔");
+            assertEquals("answer 1", store.get("question 1"));
+        }
+
+        try (PersistentCompletionStore store = open(1 << 20)) {
+            assertEquals(501, store.getStats().entries);
+            assertEquals("answer 499", store.get("question 499"));
+            assertEquals("better answer", store.get("question 7"));
+            assertEquals("Kartoffeln — pommes de terre 🥔", store.get("unicode"));
+            assertNull(store.get("question 500"));
+            assertEquals(3, store.getStats().hits);
+            assertEquals(1, store.getStats().misses);
+        }
+    }
+
+    @Test
+    @DisplayName("Overwritten records should be compacted away")
+    void testCompaction() throws Exception {
+        try (PersistentCompletionStore store = open(1 << 20)) {
+            store.put("stable", "kept across compactions");
+            for (int i = 0; i < 2000; i++) {
+                store.put("key " + (i % 10), "value " + i);
+            }
+            PersistentCompletionStore.StoreStats stats = store.getStats();
+            assertTrue(stats.compactions > 0);
+            assertTrue(stats.segments <= 3, "segments: " + stats.segments);
+            assertEquals(11, stats.entries);
+            assertEquals("kept across compactions", store.get("stable"));
+            assertEquals("value 1999", store.get("key 9"));
+        }
+
+        try (PersistentCompletionStore store = open(1 << 20)) {
+            assertEquals(11, store.getStats().entries);
+            assertEquals("kept across compactions", store.get("stable"));
+            assertEquals("value 1990", store.get("key 0"));
+        }
+    }
+
+    @Test
+    @DisplayName("The oldest segments should be dropped past the disk budget")
+    void testDiskBudget() throws Exception {
+        try (PersistentCompletionStore store = open(3 * SEGMENT_BYTES)) {
+            for (int i = 0; i < 1000; i++) {
+                store.put("question " + i, "answer " + i);
+            }
+            PersistentCompletionStore.StoreStats stats = store.getStats();
+            assertTrue(stats.diskBytes <= 3 * SEGMENT_BYTES, "disk bytes: " + stats.diskBytes);
+            assertTrue(stats.entries < 1000);
+            assertNull(store.get("question 0"));
+            assertEquals("answer 999", store.get("question 999"));
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.count() <= 3);
+        }
+    }
+
+    @Test
+    @DisplayName("A torn record at the end of the newest segment should be dropped on open")
+    void testTornWrite() throws Exception {
+        try (PersistentCompletionStore store = open(1 << 20)) {
+            store.put("first", "one");
+            store.put("second", "two");
+        }
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.toList();
+        }
+        assertEquals(1, segments.size());
+        // Corrupt the last byte of the second record's value
+        try (RandomAccessFile file = new RandomAccessFile(segments.get(0).toFile(), "rw")) {
+            file.seek(32 + 24 + "second".length() + 2);
+            file.write('X');
+        }
+
+        try (PersistentCompletionStore store = open(1 << 20)) {
+            assertEquals("one", store.get("first"));
+            assertNull(store.get("second"));
+            store.put("third", "three");
+            assertEquals("three", store.get("third"));
+        }
+        try (PersistentCompletionStore store = open(1 << 20)) {
+            assertEquals(2, store.getStats().entries);
+            assertEquals("three", store.get("third"));
+        }
+    }
+
+    @Test
+    @DisplayName("Expired completions should not be served")
+    void testExpiry() throws Exception {
+        try (PersistentCompletionStore store = new PersistentCompletionStore(directory, SEGMENT_BYTES, 1 << 20, 1)) {
+            store.put("key", "value");
+            assertEquals("value", store.get("key"));
+            Thread.sleep(1100);
+            assertNull(store.get("key"));
+        }
+    }
+}
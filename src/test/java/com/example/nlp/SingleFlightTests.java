@@ -0,0 +1,112 @@
+package com.example.nlp;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Single Flight Tests")
+public class SingleFlightTests {
+
+    @Test
+    @DisplayName("Concurrent identical calls should share one execution")
+    void testConcurrentDuplicatesCoalesced() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<String>> results = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 20; i++) {
+                results.add(executor.submit(() -> singleFlight.execute("same", () -> {
+                    executions.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "answer";
+                })));
+            }
+            while (singleFlight.getStats().coalesced < 19) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("answer", result.get());
+            }
+        }
+
+        assertEquals(1, executions.get());
+        SingleFlight.Stats stats = singleFlight.getStats();
+        assertEquals(1, stats.executions);
+        assertEquals(19, stats.coalesced);
+        assertEquals(0, stats.inFlight);
+    }
+
+    @Test
+    @DisplayName("Sequential calls should each run, and failures should reach the caller")
+    void testNoCachingAndFailures() {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        AtomicInteger executions = new AtomicInteger();
+
+        singleFlight.execute("key", () -> "first " + executions.incrementAndGet());
+        assertEquals("first 2", singleFlight.execute("key", () -> "first " + executions.incrementAndGet()));
+        assertThrows(IllegalStateException.class,
+            () -> singleFlight.execute("key", () -> { throw new IllegalStateException("boom"); }));
+        assertEquals(0, singleFlight.getStats().inFlight);
+    }
+
+    @Test
+    @DisplayName("Asynchronous calls should share one run, cancelled only when every caller cancels")
+    void testAsyncCoalescingAndCancellation() throws Exception {
+        SingleFlight<String> singleFlight = new SingleFlight<>();
+        AtomicInteger executions = new AtomicInteger();
+        CompletableFuture<String> source = new CompletableFuture<>();
+
+        CompletableFuture<String> first = singleFlight.executeAsync("key", () -> {
+            executions.incrementAndGet();
+            return source;
+        });
+        CompletableFuture<String> second = singleFlight.executeAsync("key", () -> {
+            executions.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        assertEquals(1, executions.get());
+
+        first.cancel(true);
+        assertFalse(source.isCancelled(), "Another caller still waits on the run");
+        second.cancel(true);
+        assertTrue(source.isCancelled());
+        assertEquals(0, singleFlight.getStats().inFlight);
+
+        // A later call starts afresh, and its joiners get its result
+        CompletableFuture<String> next = new CompletableFuture<>();
+        CompletableFuture<String> third = singleFlight.executeAsync("key", () -> next);
+        CompletableFuture<String> fourth = singleFlight.executeAsync("key", CompletableFuture::new);
+        next.complete("answer");
+        assertEquals("answer", third.get());
+        assertEquals("answer", fourth.get());
+        SingleFlight.Stats stats = singleFlight.getStats();
+        assertEquals(2, stats.executions);
+        assertEquals(2, stats.coalesced);
+        assertEquals(0, stats.inFlight);
+    }
+
+    @Test
+    @DisplayName("Normalisation should ignore case and whitespace differences")
+    void testNormalize() {
+        assertEquals(SingleFlight.normalize("How do I grow  potatoes?"),
+                     SingleFlight.normalize("  how do i GROW potatoes?\n"));
+        assertNotEquals(SingleFlight.normalize("grow potatoes"), SingleFlight.normalize("grow tomatoes"));
+    }
+}
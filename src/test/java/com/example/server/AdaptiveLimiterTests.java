@@ -0,0 +1,76 @@
+package com.example.server;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Adaptive Limiter Tests")
+public class AdaptiveLimiterTests {
+
+    private static final long MILLIS = 1_000_000L;
+
+    /**
+     * Run rounds that fill the limit and complete every query with the given latency
+     */
+    private static void saturate(AdaptiveLimiter limiter, long latencyNanos, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            int acquired = 0;
+            while (limiter.tryAcquire()) {
+                acquired++;
+            }
+            for (int i = 0; i < acquired; i++) {
+                limiter.release(latencyNanos, true);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Queries beyond the limit should be refused")
+    void testRejectsBeyondLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+
+        limiter.release(0, false);
+        assertTrue(limiter.tryAcquire());
+
+        AdaptiveLimiter.LimiterStats stats = limiter.getStats();
+        assertEquals(2, stats.inFlight);
+        assertEquals(3, stats.accepted);
+        assertEquals(1, stats.rejected);
+    }
+
+    @Test
+    @DisplayName("Limit should grow under steady latency and shrink when latency rises")
+    void testFollowsLatency() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10, 2, 100);
+
+        saturate(limiter, 300 * MILLIS, 20);
+        int grown = limiter.getLimit();
+        assertTrue(grown > 10, "limit should grow at steady latency: " + grown);
+
+        saturate(limiter, 20_000 * MILLIS, 3);
+        int shrunk = limiter.getLimit();
+        assertTrue(shrunk < grown, "limit should shrink when latency rises: " + grown + " -> " + shrunk);
+        assertTrue(shrunk >= 2);
+    }
+
+    @Test
+    @DisplayName("Limit should stay within its bounds and recover after a lasting latency shift")
+    void testBounds() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(7, 6, 8);
+        saturate(limiter, 10 * MILLIS, 200);
+        assertEquals(8, limiter.getLimit());
+
+        int lowest = limiter.getLimit();
+        for (int round = 0; round < 200; round++) {
+            saturate(limiter, 100_000 * MILLIS, 1);
+            lowest = Math.min(lowest, limiter.getLimit());
+        }
+        assertEquals(6, lowest);
+        // Once the slower latency is the norm, the limit recovers
+        assertEquals(8, limiter.getLimit());
+    }
+}
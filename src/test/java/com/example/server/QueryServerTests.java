@@ -0,0 +1,536 @@
+package com.example.server;
+
+import com.example.db.DatabaseService;
+import com.example.nlp.LLMClient;
+import com.example.nlp.NLPService;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Query Server Tests")
+public class QueryServerTests {
+
+    private QueryServer server;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private QueryServer startServer(Map<String, String> settings) {
+        // Empty API key: NLPService answers with mock responses
+        return startServer(settings, new NLPService("", "gpt-3.5-turbo"));
+    }
+
+    private QueryServer startServer(Map<String, String> settings, NLPService nlpService) {
+        Map<String, String> env = new HashMap<>(settings);
+        env.put("PORT", "0");
+        DatabaseService db = new DatabaseService(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        server = new QueryServer(ServerConfig.fromEnv(env), nlpService, db);
+        server.start();
+        assertTrue(server.isRunning());
+        return server;
+    }
+
+    private static PrintWriter writer(Socket socket) throws IOException {
+        return new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    @DisplayName("Virtual executor should serve more connections than the fixed pool size")
+    void testVirtualThreadPerConnection() throws Exception {
+        startServer(Map.of("SERVER_EXECUTOR", "virtual", "THREAD_POOL_SIZE", "1"));
+
+        List<Socket> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 5; i++) {
+                clients.add(new Socket("localhost", server.getPort()));
+            }
+            // Every idle connection holds a handler, yet the last one is still served
+            Socket last = clients.get(clients.size() - 1);
+            writer(last).println("How do I grow potatoes?");
+            String line = reader(last).readLine();
+            assertNotNull(line);
+            assertTrue(line.startsWith("RESPONSE:"), line);
+            assertEquals(5, server.getActiveConnections());
+        } finally {
+            for (Socket client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("NIO engine should answer pipelined lines in order and honour EXIT")
+    void testNioEngine() throws Exception {
+        startServer(Map.of("SERVER_ENGINE", "nio", "NIO_BUFFER_SIZE", "256"));
+
+        try (Socket client = new Socket("localhost", server.getPort())) {
+            BufferedReader in = reader(client);
+            // Several requests in one write must be framed and answered one block at a time
+            client.getOutputStream().write("first question\r\nSTATS\nsecond question\nEXIT\n".getBytes(StandardCharsets.UTF_8));
+            client.getOutputStream().flush();
+
+            String line = in.readLine();
+            assertTrue(line.startsWith("RESPONSE:") && line.contains("first question"), line);
+            assertTrue(in.readLine().startsWith("TIME:"));
+            assertEquals("---", in.readLine());
+            assertEquals("STATS:", in.readLine());
+            while (!"---".equals(line)) {
+                line = in.readLine();
+            }
+            line = in.readLine();
+            assertTrue(line.contains("second question"), line);
+            in.readLine();
+            in.readLine();
+            assertEquals("Goodbye!", in.readLine());
+            assertNull(in.readLine(), "Server should close the connection after EXIT");
+        }
+    }
+
+    @Test
+    @DisplayName("NIO engine should answer an overlong pipelined line after the replies before it")
+    void testNioLineTooLong() throws Exception {
+        NLPService slowService = new NLPService("", "gpt-3.5-turbo") {
+            @Override
+            public String processQuery(String query) {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.processQuery(query);
+            }
+        };
+        startServer(Map.of("SERVER_ENGINE", "nio", "NIO_BUFFER_SIZE", "256"), slowService);
+
+        try (Socket client = new Socket("localhost", server.getPort())) {
+            PrintWriter out = writer(client);
+            BufferedReader in = reader(client);
+            out.println("PIPELINE");
+            assertEquals("PIPELINE:ON", in.readLine());
+            out.print("q1 first question\n" + "x".repeat(600));
+            out.flush();
+
+            String line = in.readLine();
+            assertTrue(line.startsWith("RESPONSE q1:"), line);
+            while (!line.startsWith("--- ")) {
+                line = in.readLine();
+            }
+            assertEquals("ERROR:Request line too long", in.readLine());
+            assertEquals("---", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    @DisplayName("NIO engine should share one LLM call among identical concurrent queries")
+    void testNioQueriesCoalesced() throws Exception {
+        AtomicInteger llmCalls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServer stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.createContext("/v1/chat/completions", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            llmCalls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{\"choices\": [{\"message\": {\"content\": \"Plant in spring\"}}]}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        stub.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        stub.start();
+        List<Socket> clients = new ArrayList<>();
+        try (LLMClient llm = new LLMClient("test-key", "http://localhost:" + stub.getAddress().getPort() + "/v1",
+                Duration.ofSeconds(5), Duration.ofSeconds(5))) {
+            NLPService nlpService = new NLPService(llm, "gpt-3.5-turbo");
+            startServer(Map.of("SERVER_ENGINE", "nio", "DRAIN_TIMEOUT_SECONDS", "1"), nlpService);
+
+            for (int i = 0; i < 5; i++) {
+                Socket client = new Socket("localhost", server.getPort());
+                clients.add(client);
+                writer(client).println("When should I plant potatoes?");
+            }
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (nlpService.getCoalescingStats().coalesced < 4 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Socket client : clients) {
+                String line = reader(client).readLine();
+                assertTrue(line.startsWith("RESPONSE:") && line.contains("Plant in spring"), line);
+            }
+            assertEquals(1, llmCalls.get());
+        } finally {
+            for (Socket client : clients) {
+                client.close();
+            }
+            stub.stop(0);
+        }
+    }
+
+    @Test
+    @DisplayName("Pipelined mode should tag every response block with its request id")
+    void testPipelinedRequests() throws Exception {
+        for (String engine : List.of("blocking", "nio")) {
+            startServer(Map.of("SERVER_ENGINE", engine, "PIPELINE_MAX_IN_FLIGHT", "4"));
+
+            try (Socket client = new Socket("localhost", server.getPort())) {
+                PrintWriter out = writer(client);
+                BufferedReader in = reader(client);
+                out.println("PIPELINE");
+                assertEquals("PIPELINE:ON", in.readLine());
+
+                for (int i = 1; i <= 6; i++) {
+                    out.println("q" + i + " potato question " + i);
+                }
+                out.println("EXIT");
+
+                Set<String> completed = new HashSet<>();
+                String line;
+                while (!"Goodbye!".equals(line = in.readLine())) {
+                    assertNotNull(line, engine + ": connection closed before EXIT reply");
+                    if (line.startsWith("RESPONSE ")) {
+                        String id = line.substring("RESPONSE ".length(), line.indexOf(':'));
+                        assertTrue(line.contains("potato question " + id.substring(1)), line);
+                    } else if (line.startsWith("--- ")) {
+                        completed.add(line.substring(4));
+                    }
+                }
+                assertEquals(Set.of("q1", "q2", "q3", "q4", "q5", "q6"), completed, engine);
+            }
+            server.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("Binary framing should carry multi-line queries and echo request ids")
+    void testBinaryFraming() throws Exception {
+        startServer(Map.of());
+
+        try (Socket client = new Socket("localhost", server.getPort())) {
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            out.write(BinaryFrameCodec.MAGIC);
+            writeFrame(out, BinaryFrameCodec.QUERY, 41, "line one\nline two");
+            writeFrame(out, BinaryFrameCodec.EXIT, 42, "");
+
+            assertEquals(BinaryFrameCodec.RESPONSE, in.readByte());
+            in.skipNBytes(3);
+            assertEquals(41, in.readInt());
+            assertTrue(in.readInt() >= 0);
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            assertTrue(new String(payload, StandardCharsets.UTF_8).contains("line one\nline two"));
+
+            assertEquals(BinaryFrameCodec.GOODBYE, in.readByte());
+            in.skipNBytes(3);
+            assertEquals(42, in.readInt());
+        }
+    }
+
+    @Test
+    @DisplayName("An oversized binary frame should get an ERROR frame before the connection closes")
+    void testBinaryFrameTooLarge() throws Exception {
+        startServer(Map.of("BINARY_MAX_FRAME_SIZE", "16"));
+
+        try (Socket client = new Socket("localhost", server.getPort())) {
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            out.write(BinaryFrameCodec.MAGIC);
+            writeFrame(out, BinaryFrameCodec.QUERY, 7, "a query longer than sixteen bytes");
+
+            assertEquals(BinaryFrameCodec.ERROR, in.readByte());
+            in.skipNBytes(3);
+            assertEquals(7, in.readInt());
+            in.readInt();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            assertTrue(new String(payload, StandardCharsets.UTF_8).contains("exceeds limit of 16"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    @DisplayName("A binary connection closed inside a frame header should get an ERROR frame")
+    void testBinaryFrameTruncatedHeader() throws Exception {
+        startServer(Map.of());
+
+        try (Socket client = new Socket("localhost", server.getPort())) {
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            out.write(BinaryFrameCodec.MAGIC);
+            out.writeByte(BinaryFrameCodec.QUERY);
+            out.write(new byte[5]);
+            out.flush();
+            client.shutdownOutput();
+
+            assertEquals(BinaryFrameCodec.ERROR, in.readByte());
+            in.skipNBytes(3);
+            assertEquals(0, in.readInt());
+            in.readInt();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            assertEquals("Connection closed inside a frame", new String(payload, StandardCharsets.UTF_8));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, byte type, int requestId, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(type);
+        out.write(new byte[3]);
+        out.writeInt(requestId);
+        out.writeInt(0);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    @Test
+    @DisplayName("Connections beyond in-flight and queue limits should get BUSY")
+    void testAdmissionControl() throws Exception {
+        startServer(Map.of("THREAD_POOL_SIZE", "1", "MAX_QUEUED_CONNECTIONS", "1", "BUSY_RETRY_AFTER_SECONDS", "3"));
+
+        try (Socket served = new Socket("localhost", server.getPort());
+             Socket queued = new Socket("localhost", server.getPort());
+             Socket rejected = new Socket("localhost", server.getPort())) {
+            assertEquals("BUSY:retry-after=3s", reader(rejected).readLine());
+
+            AdmissionController.AdmissionStats stats = server.getAdmissionStats();
+            assertEquals(2, stats.admitted);
+            assertEquals(1, stats.rejected);
+
+            // The queued client is served once the first one leaves
+            writer(served).println("EXIT");
+            assertEquals("Goodbye!", reader(served).readLine());
+            writer(queued).println("STATS");
+            assertEquals("STATS:", reader(queued).readLine());
+        }
+    }
+
+    @Test
+    @DisplayName("Reaper should close a connection that trickles bytes without completing a line")
+    void testIdleConnectionReaped() throws Exception {
+        startServer(Map.of("CLIENT_IDLE_TIMEOUT_SECONDS", "1", "REAPER_INTERVAL_SECONDS", "1"));
+
+        try (Socket client = new Socket("localhost", server.getPort())) {
+            client.setSoTimeout(10_000);
+            OutputStream out = client.getOutputStream();
+            long start = System.nanoTime();
+            // Each byte resets SO_TIMEOUT, so only the reaper can end this connection
+            try {
+                for (int i = 0; i < 40; i++) {
+                    out.write('x');
+                    out.flush();
+                    Thread.sleep(200);
+                }
+            } catch (IOException e) {
+                // Expected once the server has closed the socket
+            }
+            assertEquals(-1, client.getInputStream().read());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(8));
+        }
+    }
+
+    @Test
+    @DisplayName("Connections should close after the configured number of requests")
+    void testMaxRequestsPerConnection() throws Exception {
+        for (String engine : List.of("blocking", "nio")) {
+            startServer(Map.of("SERVER_ENGINE", engine, "CLIENT_MAX_REQUESTS", "2"));
+
+            try (Socket client = new Socket("localhost", server.getPort())) {
+                PrintWriter out = writer(client);
+                BufferedReader in = reader(client);
+                out.println("STATS");
+                out.println("STATS");
+
+                int blocks = 0;
+                String line;
+                while ((line = in.readLine()) != null && !line.startsWith("CLOSING:")) {
+                    if (line.equals("---")) {
+                        blocks++;
+                    }
+                }
+                assertEquals(2, blocks, engine);
+                assertNotNull(line, engine);
+                assertNull(in.readLine(), engine);
+            }
+            server.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("BATCH should answer every query in request order")
+    void testBatchCommand() throws Exception {
+        for (String engine : List.of("blocking", "nio")) {
+            startServer(Map.of("SERVER_ENGINE", engine, "BATCH_PARALLELISM", "3"));
+
+            try (Socket client = new Socket("localhost", server.getPort())) {
+                PrintWriter out = writer(client);
+                BufferedReader in = reader(client);
+                out.println("BATCH 10");
+                for (int i = 0; i < 10; i++) {
+                    out.println("batch query " + i);
+                }
+
+                assertEquals("BATCH:10", in.readLine(), engine);
+                for (int i = 0; i < 10; i++) {
+                    String response = in.readLine();
+                    assertTrue(response.startsWith("RESPONSE:") && response.contains("batch query " + i), response);
+                    assertTrue(in.readLine().startsWith("TIME:"));
+                    assertEquals("---", in.readLine());
+                }
+
+                out.println("BATCH zero");
+                assertTrue(in.readLine().startsWith("ERROR:"), engine);
+                assertEquals("---", in.readLine());
+                out.println("STATS");
+                assertEquals("STATS:", in.readLine());
+                assertEquals("Total queries: 10", in.readLine(), engine);
+            }
+            server.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("STREAM should send completion chunks before the closing TIME line")
+    void testStreamCommand() throws Exception {
+        for (String engine : List.of("blocking", "nio")) {
+            startServer(Map.of("SERVER_ENGINE", engine));
+
+            try (Socket client = new Socket("localhost", server.getPort())) {
+                PrintWriter out = writer(client);
+                BufferedReader in = reader(client);
+                out.println("STREAM streamed question");
+
+                StringBuilder completion = new StringBuilder();
+                int chunks = 0;
+                String line;
+                while ((line = in.readLine()).startsWith("CHUNK:")) {
+                    completion.append(line.substring("CHUNK:".length()));
+                    chunks++;
+                }
+                assertTrue(chunks > 1, engine + ": expected several chunks, got " + chunks);
+                assertTrue(completion.toString().contains("streamed question"), completion.toString());
+                assertTrue(line.startsWith("TIME:"), engine + ": " + line);
+                assertEquals("---", in.readLine());
+
+                out.println("STATS");
+                assertEquals("STATS:", in.readLine());
+                assertEquals("Total queries: 1", in.readLine(), engine);
+            }
+            server.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("stop() should let an in-flight query finish and answer before closing")
+    void testGracefulDrain() throws Exception {
+        NLPService slowService = new NLPService("", "gpt-3.5-turbo") {
+            @Override
+            public String processQuery(String query) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.processQuery(query);
+            }
+        };
+
+        for (String engine : List.of("blocking", "nio")) {
+            startServer(Map.of("SERVER_ENGINE", engine, "DRAIN_TIMEOUT_SECONDS", "5"), slowService);
+
+            try (Socket client = new Socket("localhost", server.getPort())) {
+                writer(client).println("slow question");
+                Thread.sleep(100);
+
+                Thread stopper = Thread.ofVirtual().start(server::stop);
+                BufferedReader in = reader(client);
+                String line = in.readLine();
+                assertNotNull(line, engine);
+                assertTrue(line.startsWith("RESPONSE:"), engine + ": " + line);
+                assertTrue(in.readLine().startsWith("TIME:"));
+                assertEquals("---", in.readLine());
+                assertNull(in.readLine(), engine + ": connection should close once drained");
+
+                stopper.join(5_000);
+                assertFalse(stopper.isAlive(), engine + ": stop() should return after draining");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Multiple acceptors should share one port and count every accepted connection")
+    void testMultipleAcceptors() throws Exception {
+        startServer(Map.of("ACCEPTOR_THREADS", "4", "SERVER_EXECUTOR", "virtual"));
+
+        for (int i = 0; i < 20; i++) {
+            try (Socket client = new Socket("localhost", server.getPort())) {
+                writer(client).println("STATS");
+                assertEquals("STATS:", reader(client).readLine());
+            }
+        }
+
+        AcceptMeter.AcceptStats stats = server.getAcceptStats();
+        assertEquals(20, stats.acceptedTotal);
+        assertEquals(4, stats.acceptedPerAcceptor.length);
+        assertTrue(stats.peakAcceptsPerSecond >= 1);
+    }
+
+    @Test
+    @DisplayName("Unknown executor mode should be rejected")
+    void testInvalidExecutorMode() {
+        assertThrows(IllegalArgumentException.class,
+            () -> ServerConfig.fromEnv(Map.of("SERVER_EXECUTOR", "forkjoin")));
+    }
+
+    @Test
+    @DisplayName("A reaper interval that is not positive should be rejected")
+    void testInvalidReaperInterval() {
+        assertThrows(IllegalArgumentException.class,
+            () -> ServerConfig.fromEnv(Map.of("REAPER_INTERVAL_SECONDS", "0")));
+        assertThrows(IllegalArgumentException.class,
+            () -> ServerConfig.fromEnv(Map.of("REAPER_INTERVAL_SECONDS", "-5")));
+    }
+}
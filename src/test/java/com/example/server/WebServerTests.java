@@ -0,0 +1,466 @@
+package com.example.server;
+
+import com.example.db.DatabaseService;
+import com.example.mcp.MCPServerManager;
+import com.example.nlp.AgentNLPService;
+import com.example.nlp.LLMClient;
+import com.example.nlp.NLPService;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DisplayName("Web Server Tests")
+public class WebServerTests {
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private WebServer server;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private WebServer startServer(Map<String, String> settings, NLPService nlpService) {
+        Map<String, String> env = new HashMap<>(settings);
+        env.put("WEB_PORT", "0");
+        env.put("DRAIN_TIMEOUT_SECONDS", "1");
+        DatabaseService db = new DatabaseService(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        server = new WebServer(ServerConfig.fromEnv(env), nlpService, db);
+        server.start();
+        return server;
+    }
+
+    private CompletableFuture<HttpResponse<String>> postQuery(String query) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/api/query"))
+            .POST(HttpRequest.BodyPublishers.ofString("{\"query\":\"" + query + "\"}"))
+            .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> get(String path) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + path)).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * NLP service whose queries block until released
+     */
+    private static NLPService blockingService(CountDownLatch started, CountDownLatch release) {
+        return new NLPService("", "gpt-3.5-turbo") {
+            @Override
+            public String processQuery(String query) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.processQuery(query);
+            }
+        };
+    }
+
+    @Test
+    @DisplayName("Identical concurrent agent queries should share one LLM call")
+    void testAgentQueriesCoalesced() throws Exception {
+        AtomicInteger llmCalls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServer stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stub.createContext("/v1/chat/completions", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            llmCalls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{\"choices\": [{\"message\": {\"content\": \"Plant in spring\"}}]}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        stub.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        stub.start();
+        try (LLMClient llm = new LLMClient("test-key", "http://localhost:" + stub.getAddress().getPort() + "/v1",
+                Duration.ofSeconds(5), Duration.ofSeconds(5))) {
+            AgentNLPService agent = new AgentNLPService(llm, "gpt-3.5-turbo", new MCPServerManager());
+            Map<String, String> env = new HashMap<>();
+            env.put("WEB_PORT", "0");
+            env.put("DRAIN_TIMEOUT_SECONDS", "1");
+            server = new WebServer(ServerConfig.fromEnv(env), agent,
+                new DatabaseService("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", ""));
+            server.start();
+
+            List<CompletableFuture<HttpResponse<String>>> queries = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                queries.add(postQuery("When should I plant potatoes?"));
+            }
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (agent.getCoalescingStats().coalesced < 4 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (CompletableFuture<HttpResponse<String>> query : queries) {
+                HttpResponse<String> response = query.get();
+                assertEquals(200, response.statusCode());
+                assertTrue(response.body().contains("Plant in spring"), response.body());
+            }
+            assertEquals(1, llmCalls.get());
+        } finally {
+            stub.stop(0);
+        }
+    }
+
+    @Test
+    @DisplayName("Slow queries should not block other requests")
+    void testConcurrentRequests() throws Exception {
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch release = new CountDownLatch(1);
+        startServer(Map.of(), blockingService(started, release));
+
+        List<CompletableFuture<HttpResponse<String>>> queries =
+            List.of(postQuery("one"), postQuery("two"), postQuery("three"));
+        started.await();
+        assertEquals(3, server.getInFlightRequests());
+
+        // Stats are served while all three queries are still running
+        HttpResponse<String> stats = get("/api/stats");
+        assertEquals(200, stats.statusCode());
+
+        release.countDown();
+        for (CompletableFuture<HttpResponse<String>> query : queries) {
+            assertEquals(200, query.get().statusCode());
+        }
+    }
+
+    @Test
+    @DisplayName("Requests beyond the concurrency cap should get 503 with Retry-After")
+    void testConcurrencyCap() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        startServer(Map.of("WEB_MAX_CONCURRENT_REQUESTS", "1", "BUSY_RETRY_AFTER_SECONDS", "2"),
+            blockingService(started, release));
+
+        CompletableFuture<HttpResponse<String>> slow = postQuery("slow");
+        started.await();
+
+        HttpResponse<String> rejected = get("/api/stats");
+        assertEquals(503, rejected.statusCode());
+        assertEquals("2", rejected.headers().firstValue("Retry-After").orElse(null));
+
+        release.countDown();
+        assertEquals(200, slow.get().statusCode());
+
+        AdmissionController.AdmissionStats stats = server.getAdmissionStats();
+        assertEquals(1, stats.admitted);
+        assertEquals(1, stats.rejected);
+    }
+
+    @Test
+    @DisplayName("Queries beyond the adaptive limit should be shed with 503 and Retry-After")
+    void testAdaptiveQueryLimit() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        startServer(Map.of("QUERY_LIMIT_INITIAL", "1", "QUERY_LIMIT_MIN", "1", "BUSY_RETRY_AFTER_SECONDS", "3"),
+            blockingService(started, release));
+
+        CompletableFuture<HttpResponse<String>> slow = postQuery("slow");
+        started.await();
+
+        HttpResponse<String> shed = postQuery("shed").get();
+        assertEquals(503, shed.statusCode());
+        assertEquals("3", shed.headers().firstValue("Retry-After").orElse(null));
+        // Streamed queries and each query of a batch share the limit
+        assertEquals(503, get("/api/query/stream?query=shed").statusCode());
+        HttpResponse<String> batch = client.send(HttpRequest.newBuilder(
+                URI.create("http://localhost:" + server.getPort() + "/api/query/batch"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"queries\": [\"shed\"]}")).build(),
+            HttpResponse.BodyHandlers.ofString());
+        JsonObject shedResult = JsonParser.parseString(batch.body()).getAsJsonArray().get(0).getAsJsonObject();
+        assertEquals("Server overloaded", shedResult.get("error").getAsString());
+        // Other endpoints are not affected
+        assertEquals(200, get("/api/stats").statusCode());
+
+        release.countDown();
+        assertEquals(200, slow.get().statusCode());
+
+        AdaptiveLimiter.LimiterStats stats = server.getQueryLimiterStats();
+        assertEquals(1, stats.accepted);
+        assertEquals(3, stats.rejected);
+        assertTrue(get("/metrics").body().contains("scaling_potato_query_concurrency_limit "));
+    }
+
+    @Test
+    @DisplayName("Backend error replies should count as failed queries")
+    void testQueryResultSuccess() {
+        assertTrue(new QueryProtocol.QueryResult("Plant in spring", 10).success);
+        assertFalse(new QueryProtocol.QueryResult("API Error: 503", 10).success);
+        assertFalse(new QueryProtocol.QueryResult("Agent error: timed out", 10).success);
+        assertFalse(new QueryProtocol.QueryResult("Error processing query: interrupted", 10).success);
+    }
+
+    @Test
+    @DisplayName("Query bodies should be parsed as real JSON and replies encoded as UTF-8")
+    void testJsonBodies() throws Exception {
+        startServer(Map.of(), new NLPService("", "gpt-3.5-turbo"));
+
+        String query = "caf\u00e9 \\\"quoted\\\" \u2603";
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/api/query"))
+            .POST(HttpRequest.BodyPublishers.ofString("{ \"mode\": [1, {\"x\": 2}], \"query\" : \"" + query + "\" }"))
+            .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("application/json"));
+
+        JsonObject body = JsonParser.parseString(response.body()).getAsJsonObject();
+        assertTrue(body.get("response").getAsString().contains("caf\u00e9 \"quoted\" \u2603"), response.body());
+        assertEquals("traditional", body.get("mode").getAsString());
+
+        HttpRequest malformed = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/api/query"))
+            .POST(HttpRequest.BodyPublishers.ofString("{\"query\": "))
+            .build();
+        assertEquals(400, client.send(malformed, HttpResponse.BodyHandlers.ofString()).statusCode());
+        assertEquals(400, postQuery("").get().statusCode());
+    }
+
+    @Test
+    @DisplayName("Static assets should be served from memory with gzip, ETag and 304 revalidation")
+    void testStaticAssets() throws Exception {
+        startServer(Map.of(), new NLPService("", "gpt-3.5-turbo"));
+        URI index = URI.create("http://localhost:" + server.getPort() + "/");
+
+        HttpResponse<byte[]> plain = client.send(HttpRequest.newBuilder(index).build(),
+            HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, plain.statusCode());
+        assertTrue(new String(plain.body(), StandardCharsets.UTF_8).contains("<html"));
+        assertTrue(plain.headers().firstValue("Cache-Control").orElse("").contains("max-age=300"));
+        String etag = plain.headers().firstValue("ETag").orElseThrow();
+
+        HttpResponse<byte[]> gzipped = client.send(HttpRequest.newBuilder(index)
+                .header("Accept-Encoding", "deflate, gzip;q=0.9").build(),
+            HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals("gzip", gzipped.headers().firstValue("Content-Encoding").orElse(null));
+        assertNotEquals(etag, gzipped.headers().firstValue("ETag").orElse(null));
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.body()))) {
+            assertArrayEquals(plain.body(), in.readAllBytes());
+        }
+
+        HttpResponse<byte[]> notModified = client.send(HttpRequest.newBuilder(index)
+                .header("If-None-Match", etag).build(),
+            HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(304, notModified.statusCode());
+        assertEquals(0, notModified.body().length);
+    }
+
+    @Test
+    @DisplayName("Jobs should return an id at once, run in the background and report their result")
+    void testAsyncJobs() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        startServer(Map.of("JOB_WORKERS", "1", "JOB_MAX_QUEUED", "1"), blockingService(started, release));
+
+        HttpResponse<String> accepted = postJob("first job").get();
+        assertEquals(202, accepted.statusCode());
+        String id = JsonParser.parseString(accepted.body()).getAsJsonObject().get("id").getAsString();
+        assertEquals("/api/jobs/" + id, accepted.headers().firstValue("Location").orElse(null));
+        started.await();
+
+        // One job running and one queued: the next submission is refused
+        assertEquals(202, postJob("second job").get().statusCode());
+        assertEquals(503, postJob("third job").get().statusCode());
+        assertEquals("running", jobStatus(get("/api/jobs/" + id)).get("status").getAsString());
+
+        release.countDown();
+        JsonObject job = jobStatus(get("/api/jobs/" + id));
+        for (int i = 0; i < 50 && !job.get("status").getAsString().equals("succeeded"); i++) {
+            Thread.sleep(100);
+            job = jobStatus(get("/api/jobs/" + id));
+        }
+        assertEquals("succeeded", job.get("status").getAsString());
+        assertTrue(job.get("response").getAsString().contains("first job"));
+
+        assertEquals(404, get("/api/jobs/no-such-job").statusCode());
+        assertEquals(1, server.getJobStats().rejected);
+    }
+
+    private CompletableFuture<HttpResponse<String>> postJob(String query) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/api/jobs"))
+            .POST(HttpRequest.BodyPublishers.ofString("{\"query\":\"" + query + "\"}"))
+            .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static JsonObject jobStatus(HttpResponse<String> response) {
+        assertEquals(200, response.statusCode(), response.body());
+        return JsonParser.parseString(response.body()).getAsJsonObject();
+    }
+
+    @Test
+    @DisplayName("Query stream should send chunk events and end with the final response")
+    void testQueryEventStream() throws Exception {
+        startServer(Map.of(), new NLPService("", "gpt-3.5-turbo"));
+
+        HttpResponse<String> response = get("/api/query/stream?query=streamed%20over%20sse");
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/event-stream"));
+
+        List<String> events = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        JsonObject done = null;
+        String event = null;
+        for (String line : response.body().split("\n")) {
+            if (line.startsWith("event: ")) {
+                event = line.substring("event: ".length());
+                events.add(event);
+            } else if (line.startsWith("data: ")) {
+                JsonObject data = JsonParser.parseString(line.substring("data: ".length())).getAsJsonObject();
+                if ("chunk".equals(event)) {
+                    text.append(data.get("text").getAsString());
+                } else if ("done".equals(event)) {
+                    done = data;
+                }
+            }
+        }
+        assertTrue(events.size() > 2 && events.get(0).equals("chunk"), events.toString());
+        assertEquals("done", events.get(events.size() - 1));
+        assertNotNull(done);
+        assertEquals(text.toString(), done.get("response").getAsString());
+        assertTrue(text.toString().contains("streamed over sse"));
+
+        assertEquals(400, get("/api/query/stream").statusCode());
+    }
+
+    @Test
+    @DisplayName("Batch endpoint should answer in order, stream NDJSON on request and store every result")
+    void testBatchQueries() throws Exception {
+        startServer(Map.of("BATCH_MAX_SIZE", "5", "BATCH_PARALLELISM", "2"), new NLPService("", "gpt-3.5-turbo"));
+        URI batch = URI.create("http://localhost:" + server.getPort() + "/api/query/batch");
+        String body = "{\"queries\": [\"q0\", \"q1\", \"q2\", \"q3\"]}";
+
+        HttpResponse<String> ordered = client.send(HttpRequest.newBuilder(batch)
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+            HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, ordered.statusCode());
+        JsonArray results = JsonParser.parseString(ordered.body()).getAsJsonArray();
+        assertEquals(4, results.size());
+        for (int i = 0; i < 4; i++) {
+            JsonObject result = results.get(i).getAsJsonObject();
+            assertEquals(i, result.get("index").getAsInt());
+            assertTrue(result.get("response").getAsString().contains("q" + i));
+        }
+
+        HttpResponse<String> streamed = client.send(HttpRequest.newBuilder(batch)
+                .header("Accept", "application/x-ndjson")
+                .POST(HttpRequest.BodyPublishers.ofString(body)).build(),
+            HttpResponse.BodyHandlers.ofString());
+        Set<Integer> indexes = new HashSet<>();
+        for (String line : streamed.body().split("\n")) {
+            indexes.add(JsonParser.parseString(line).getAsJsonObject().get("index").getAsInt());
+        }
+        assertEquals(Set.of(0, 1, 2, 3), indexes);
+
+        HttpResponse<String> tooLarge = client.send(HttpRequest.newBuilder(batch)
+                .POST(HttpRequest.BodyPublishers.ofString("{\"queries\": [\"a\", \"b\", \"c\", \"d\", \"e\", \"f\"]}")).build(),
+            HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, tooLarge.statusCode());
+
+        JsonObject stats = JsonParser.parseString(get("/api/stats").body()).getAsJsonObject();
+        assertEquals(8, stats.get("totalQueries").getAsInt());
+    }
+
+    @Test
+    @DisplayName("API replies should be compressed above the threshold, including streamed NDJSON")
+    void testResponseCompression() throws Exception {
+        startServer(Map.of("WEB_COMPRESSION_MIN_BYTES", "200"), new NLPService("", "gpt-3.5-turbo"));
+        URI base = URI.create("http://localhost:" + server.getPort());
+
+        // Stats reply is far below the threshold
+        HttpResponse<String> small = client.send(HttpRequest.newBuilder(base.resolve("/api/stats"))
+                .header("Accept-Encoding", "gzip").build(),
+            HttpResponse.BodyHandlers.ofString());
+        assertTrue(small.headers().firstValue("Content-Encoding").isEmpty());
+        assertEquals(String.valueOf(small.body().length()), small.headers().firstValue("Content-Length").orElse(null));
+
+        String longQuery = "potato ".repeat(100);
+        for (String encoding : List.of("gzip", "deflate")) {
+            HttpResponse<InputStream> large = client.send(HttpRequest.newBuilder(base.resolve("/api/query"))
+                    .header("Accept-Encoding", encoding)
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"query\":\"" + longQuery + "\"}")).build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+            assertEquals(encoding, large.headers().firstValue("Content-Encoding").orElse(null));
+            String body = new String(decode(encoding, large.body()).readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(JsonParser.parseString(body).getAsJsonObject().get("response").getAsString().contains(longQuery));
+        }
+
+        HttpResponse<InputStream> ndjson = client.send(HttpRequest.newBuilder(base.resolve("/api/query/batch"))
+                .header("Accept", "application/x-ndjson")
+                .header("Accept-Encoding", "gzip")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"queries\": [\"a\", \"b\"]}")).build(),
+            HttpResponse.BodyHandlers.ofInputStream());
+        assertEquals("gzip", ndjson.headers().firstValue("Content-Encoding").orElse(null));
+        String lines = new String(decode("gzip", ndjson.body()).readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.strip().split("\n").length);
+    }
+
+    private static InputStream decode(String encoding, InputStream body) throws IOException {
+        return encoding.equals("gzip") ? new GZIPInputStream(body) : new InflaterInputStream(body);
+    }
+
+    @Test
+    @DisplayName("/metrics should report per-stage latency after a query")
+    void testMetricsEndpoint() throws Exception {
+        startServer(Map.of(), new NLPService("", "gpt-3.5-turbo"));
+        assertEquals(200, postQuery("metrics probe").get().statusCode());
+
+        HttpResponse<String> metrics = get("/metrics");
+        assertEquals(200, metrics.statusCode());
+        assertTrue(metrics.headers().firstValue("Content-Type").orElse("").startsWith("text/plain; version=0.0.4"));
+        String body = metrics.body();
+        assertTrue(body.contains("scaling_potato_stage_duration_seconds{stage=\"http\",path=\"/api/query\",quantile=\"0.99\"}"), body);
+        assertTrue(body.contains("scaling_potato_stage_duration_seconds{stage=\"nlp\",quantile=\"0.5\"}"), body);
+        assertTrue(body.contains("scaling_potato_stage_errors_total{stage=\"db_insert\",mode=\"single\"} 0"), body);
+        assertTrue(body.contains("scaling_potato_http_rejected_total 0"), body);
+    }
+
+    @Test
+    @DisplayName("Unknown web executor mode should be rejected")
+    void testInvalidWebExecutorMode() {
+        assertThrows(IllegalArgumentException.class,
+            () -> ServerConfig.fromEnv(Map.of("WEB_EXECUTOR", "forkjoin")));
+    }
+}